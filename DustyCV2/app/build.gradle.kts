@@ -36,12 +36,14 @@ android {
 
 dependencies {
     implementation(project(":opencv"))
+    implementation(project(":filmkernels"))
 
     implementation(libs.appcompat)
     implementation(libs.material)
     implementation(libs.constraintlayout)
     implementation(libs.navigation.fragment)
     implementation(libs.navigation.ui)
+    implementation(libs.work.runtime)
     implementation("com.github.MikeOrtiz:TouchImageView:3.6")
     testImplementation(libs.junit)
     androidTestImplementation(libs.ext.junit)
@@ -0,0 +1,63 @@
+package com.lapentad.dustycv;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that every choice the export settings dialog offers comes back as the same choice when
+ * the dialog is opened again, including through the copy each export takes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExportSettingsTest {
+    @Test
+    public void dialogChoicesRoundTrip() {
+        ExportSettings.Format[] formats = ExportSettings.Format.values();
+        int choices = ExportSettings.MAX_DIMENSION_CHOICES.length;
+        for (int format = 0; format < formats.length; format++) {
+            for (int size = 0; size < choices; size++) {
+                for (int quality : new int[]{50, 75, 100}) {
+                    // What the dialog's Apply button does
+                    ExportSettings settings = new ExportSettings();
+                    settings.setFormat(formats[format]);
+                    settings.setQuality(quality);
+                    settings.setMaxDimensionChoice(size);
+
+                    ExportSettings copy = new ExportSettings(settings);
+                    String label = formats[format] + " " + size + " " + quality;
+                    assertEquals(label, format, copy.getFormat().ordinal());
+                    assertEquals(label, quality, copy.getQuality());
+                    assertEquals(label, size, copy.getMaxDimensionChoice());
+                    assertEquals(label, ExportSettings.MAX_DIMENSION_CHOICES[size], copy.getMaxDimension());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void defaultsMatchAChoice() {
+        ExportSettings settings = new ExportSettings();
+        assertEquals(0, settings.getMaxDimensionChoice());
+        assertEquals(1.0, settings.getScale(8000, 6000), 0);
+    }
+
+    @Test
+    public void otherMaxDimensionShowsAsFullResolution() {
+        ExportSettings settings = new ExportSettings();
+        settings.setMaxDimension(1234);
+        assertEquals(0, settings.getMaxDimensionChoice());
+        assertEquals(1234, settings.getMaxDimension());
+    }
+
+    @Test
+    public void maxDimensionScalesLongEdge() {
+        ExportSettings settings = new ExportSettings();
+        settings.setMaxDimension(4096);
+        assertEquals(0.512, settings.getScale(8000, 6000), 1e-9);
+        assertEquals(0.512, settings.getScale(6000, 8000), 1e-9);
+        assertEquals(1.0, settings.getScale(4000, 3000), 0);
+    }
+}
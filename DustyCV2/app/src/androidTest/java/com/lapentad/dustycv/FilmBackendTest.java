@@ -0,0 +1,53 @@
+package com.lapentad.dustycv;
+
+import android.graphics.Bitmap;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the Java backend renders within a few levels of the OpenCV one for every film stock.
+ * The two round and detect edges slightly differently, so a handful of pixels near edges differ more.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FilmBackendTest {
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initLocal());
+    }
+
+    @Test
+    public void javaBackendMatchesOpenCv() {
+        Bitmap src = TestBitmaps.testImage();
+        for (EffectParameters.FilmType filmType : EffectParameters.FilmType.values()) {
+            EffectParameters parameters = new EffectParameters();
+            parameters.setFilmType(filmType);
+
+            Bitmap expected = ImageProcessor.applyFilmLook(src, parameters, new RenderContext(), null,
+                    FilmBackend.OPENCV);
+            Bitmap actual = ImageProcessor.applyFilmLook(src, parameters, new RenderContext(), null,
+                    FilmBackend.JAVA);
+
+            Mat expectedRgba = TestBitmaps.toMat(expected);
+            Mat actualRgba = TestBitmaps.toMat(actual);
+            assertEquals(filmType + " alpha", 0, TestImages.countDifferent(TestImages.alpha(expectedRgba),
+                    TestImages.alpha(actualRgba)));
+            Mat expectedRgb = TestImages.colour(expectedRgba);
+            Mat actualRgb = TestImages.colour(actualRgba);
+            assertTrue(filmType + " mean difference", TestImages.meanDifference(expectedRgb, actualRgb) < 1.0);
+            assertTrue(filmType + " large differences",
+                    TestImages.countDifferent(expectedRgb, actualRgb, 8) < expectedRgb.total() * 3 / 200);
+
+            expected.recycle();
+            actual.recycle();
+        }
+        src.recycle();
+    }
+}
@@ -0,0 +1,53 @@
+package com.lapentad.dustycv;
+
+import android.graphics.Bitmap;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that renders with the native kernels match the OpenCV ones on the device's ABI. Only the
+ * bloom blend may differ, by a level where the compiler fuses a multiply and an add.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FilmKernelsTest {
+    @BeforeClass
+    public static void loadLibraries() {
+        assertTrue(OpenCVLoader.initLocal());
+        assertTrue(FilmKernels.isAvailable());
+    }
+
+    @Test
+    public void nativeKernelsMatchOpenCv() {
+        Bitmap src = TestBitmaps.testImage();
+        for (EffectParameters.FilmType filmType : EffectParameters.FilmType.values()) {
+            EffectParameters parameters = new EffectParameters();
+            parameters.setFilmType(filmType);
+
+            Bitmap expected = ImageProcessor.applyFilmLook(src, parameters, new RenderContext());
+            RenderContext context = new RenderContext();
+            context.setNativeKernels(true);
+            Bitmap actual = ImageProcessor.applyFilmLook(src, parameters, context);
+
+            Mat expectedRgba = TestBitmaps.toMat(expected);
+            Mat actualRgba = TestBitmaps.toMat(actual);
+            assertEquals(filmType + " alpha", 0, TestImages.countDifferent(TestImages.alpha(expectedRgba),
+                    TestImages.alpha(actualRgba)));
+            Mat expectedRgb = TestImages.colour(expectedRgba);
+            Mat actualRgb = TestImages.colour(actualRgba);
+            assertTrue(filmType + " max difference", TestImages.maxDifference(expectedRgb, actualRgb) <= 2);
+            assertTrue(filmType + " changed values", TestImages.changedShare(expectedRgb, actualRgb) < 0.001);
+
+            expected.recycle();
+            actual.recycle();
+        }
+        src.recycle();
+    }
+}
@@ -0,0 +1,164 @@
+package com.lapentad.dustycv;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the single pass grain blend reproduces the per-channel float Mat version it
+ * replaced, pixel for pixel, on fixed-seed noise.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GrainBlendTest {
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initLocal());
+    }
+
+    @Test
+    public void matchesPerChannelBlend() {
+        // A gradient covers the shadow, midtone and highlight bands, the noise makes it colourful
+        Mat img = new Mat(480, 640, CvType.CV_8UC3);
+        for (int x = 0; x < img.cols(); x++) {
+            img.submat(0, img.rows(), x, x + 1).setTo(new Scalar(x * 255.0 / img.cols()));
+        }
+        Mat colour = new Mat(img.size(), img.type());
+        Core.setRNGSeed(7);
+        Core.randn(colour, 0, 40);
+        Core.add(img, colour, img);
+
+        Mat noise = new Mat(img.size(), CvType.CV_8UC1);
+        Core.setRNGSeed(42);
+        Core.randn(noise, 128, 27);
+
+        Mat luminance = new Mat();
+        Imgproc.cvtColor(img, luminance, Imgproc.COLOR_BGR2GRAY);
+
+        for (double baseIntensity : new double[]{0.01, 0.05, 0.2, 0.6}) {
+            Mat expected = img.clone();
+            blendPerChannel(expected, luminance, noise, baseIntensity);
+            Mat actual = img.clone();
+            FilmPipeline.blendGrain(actual, noise, baseIntensity);
+
+            Mat diff = new Mat();
+            Core.absdiff(expected, actual, diff);
+            assertEquals("base intensity " + baseIntensity, 0, Core.countNonZero(diff.reshape(1)));
+
+            // The same grain in the bitmap's RGBA order, with alpha untouched
+            Mat rgba = new Mat();
+            Imgproc.cvtColor(img, rgba, Imgproc.COLOR_BGR2RGBA);
+            FilmPipeline.blendGrain(rgba, noise, baseIntensity);
+            Mat alpha = new Mat();
+            Core.extractChannel(rgba, alpha, 3);
+            assertEquals(255.0, Core.minMaxLoc(alpha).minVal, 0);
+            Imgproc.cvtColor(rgba, actual, Imgproc.COLOR_RGBA2BGR);
+            Core.absdiff(expected, actual, diff);
+            assertEquals("RGBA, base intensity " + baseIntensity, 0, Core.countNonZero(diff.reshape(1)));
+
+            expected.release();
+            actual.release();
+            diff.release();
+            rgba.release();
+            alpha.release();
+        }
+
+        img.release();
+        colour.release();
+        noise.release();
+        luminance.release();
+    }
+
+    @Test
+    public void zeroIntensityLeavesImageUntouched() {
+        Mat img = new Mat(64, 64, CvType.CV_8UC3);
+        Core.setRNGSeed(1);
+        Core.randu(img, 0, 256);
+        Mat noise = new Mat(img.size(), CvType.CV_8UC1);
+        Core.randu(noise, 0, 256);
+
+        Mat actual = img.clone();
+        FilmPipeline.blendGrain(actual, noise, 0.0);
+
+        Mat diff = new Mat();
+        Core.absdiff(img, actual, diff);
+        assertEquals(0, Core.countNonZero(diff.reshape(1)));
+    }
+
+    // The grain blend addGrain did before the single pass version
+    private static void blendPerChannel(Mat img, Mat luminance, Mat noise, double baseIntensity) {
+        Mat shadowMask = new Mat();
+        Mat highlightMask = new Mat();
+        Imgproc.threshold(luminance, shadowMask, 60, 1.0, Imgproc.THRESH_BINARY_INV);
+        Imgproc.threshold(luminance, highlightMask, 200, 1.0, Imgproc.THRESH_BINARY);
+        shadowMask.convertTo(shadowMask, CvType.CV_32F);
+        highlightMask.convertTo(highlightMask, CvType.CV_32F);
+
+        Mat normalizedNoise = new Mat();
+        noise.convertTo(normalizedNoise, CvType.CV_32F);
+        Core.subtract(normalizedNoise, new Scalar(128), normalizedNoise);
+        Core.divide(normalizedNoise, new Scalar(128), normalizedNoise);
+
+        List<Mat> channels = new ArrayList<>();
+        Core.split(img, channels);
+        for (int i = 0; i < channels.size(); i++) {
+            Mat channel = channels.get(i);
+            Mat channelF = new Mat();
+            channel.convertTo(channelF, CvType.CV_32F);
+
+            Mat shadowGrain = new Mat();
+            Core.multiply(normalizedNoise, new Scalar(baseIntensity * 1.5), shadowGrain);
+            Core.multiply(shadowGrain, shadowMask, shadowGrain);
+
+            Mat highlightGrain = new Mat();
+            Core.multiply(normalizedNoise, new Scalar(baseIntensity * 0.7), highlightGrain);
+            Core.multiply(highlightGrain, highlightMask, highlightGrain);
+
+            Mat midtoneMask = new Mat(shadowMask.size(), CvType.CV_32F, new Scalar(1.0));
+            Core.subtract(midtoneMask, shadowMask, midtoneMask);
+            Core.subtract(midtoneMask, highlightMask, midtoneMask);
+
+            Mat midtoneGrain = new Mat();
+            Core.multiply(normalizedNoise, new Scalar(baseIntensity), midtoneGrain);
+            Core.multiply(midtoneGrain, midtoneMask, midtoneGrain);
+
+            Mat combinedGrain = new Mat(channelF.size(), CvType.CV_32F, new Scalar(0));
+            Core.add(combinedGrain, shadowGrain, combinedGrain);
+            Core.add(combinedGrain, midtoneGrain, combinedGrain);
+            Core.add(combinedGrain, highlightGrain, combinedGrain);
+
+            Mat result = new Mat();
+            Core.multiply(channelF, combinedGrain, result);
+            Core.add(channelF, result, channelF);
+            channelF.convertTo(channel, CvType.CV_8UC1);
+
+            channelF.release();
+            shadowGrain.release();
+            highlightGrain.release();
+            midtoneMask.release();
+            midtoneGrain.release();
+            combinedGrain.release();
+            result.release();
+        }
+        Core.merge(channels, img);
+
+        for (Mat channel : channels) {
+            channel.release();
+        }
+        shadowMask.release();
+        highlightMask.release();
+        normalizedNoise.release();
+    }
+}
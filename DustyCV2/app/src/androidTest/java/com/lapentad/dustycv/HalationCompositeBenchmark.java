@@ -0,0 +1,136 @@
+package com.lapentad.dustycv;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Times the single pass halation composite against the constant layer version it replaced on
+ * 12 MP and 48 MP frames, and checks that both produce the same pixels.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HalationCompositeBenchmark {
+    private static final String TAG = "HalationBenchmark";
+    private static final int RUNS = 3;
+
+    private static final Scalar RED = new Scalar(0, 0, 255.0);
+    private static final Scalar WARM = new Scalar(0, 0.4 * 50, 50);
+    private static final double AMOUNT = 0.15;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initLocal());
+    }
+
+    @Test
+    public void composite12MP() {
+        benchmark(3000, 4000);
+    }
+
+    @Test
+    public void composite48MP() {
+        benchmark(6000, 8000);
+    }
+
+    private void benchmark(int rows, int cols) {
+        Mat src = new Mat(rows, cols, CvType.CV_8UC3);
+        Core.setRNGSeed(42);
+        Core.randu(src, 0, 256);
+        Imgproc.GaussianBlur(src, src, new Size(31, 31), 0);
+
+        // A soft mask like the one addHalation builds from the bright areas
+        Mat mask = new Mat();
+        Imgproc.cvtColor(src, mask, Imgproc.COLOR_BGR2GRAY);
+        Imgproc.threshold(mask, mask, 128, 255, Imgproc.THRESH_BINARY);
+        Imgproc.GaussianBlur(mask, mask, new Size(51, 51), 0);
+        Core.MinMaxLocResult minMax = Core.minMaxLoc(mask);
+        double[] range = {minMax.minVal, minMax.maxVal};
+
+        Mat before = new Mat();
+        Mat after = new Mat();
+        long beforeNanos = Long.MAX_VALUE;
+        long afterNanos = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            src.copyTo(before);
+            long start = System.nanoTime();
+            compositeWithLayers(before, mask, range);
+            beforeNanos = Math.min(beforeNanos, System.nanoTime() - start);
+
+            src.copyTo(after);
+            start = System.nanoTime();
+            FilmPipeline.compositeHalation(after, mask, range, RED, WARM, AMOUNT);
+            afterNanos = Math.min(afterNanos, System.nanoTime() - start);
+        }
+        Log.i(TAG, String.format("%dx%d layers %.1f ms, single pass %.1f ms",
+                cols, rows, beforeNanos / 1e6, afterNanos / 1e6));
+
+        Mat diff = new Mat();
+        Core.absdiff(before, after, diff);
+        assertEquals(0, Core.countNonZero(diff.reshape(1)));
+
+        src.release();
+        mask.release();
+        before.release();
+        after.release();
+        diff.release();
+    }
+
+    // The compositing addHalation did before the single pass version
+    private static void compositeWithLayers(Mat img, Mat blurred, double[] range) {
+        Mat redLayer = new Mat(img.size(), img.type());
+        redLayer.setTo(RED);
+        Mat warmLayer = new Mat(img.size(), img.type());
+        warmLayer.setTo(WARM);
+
+        Mat channel = new Mat();
+        double scale = range[1] - range[0] > 0 ? 1.0 / (range[1] - range[0]) : 0.0;
+        blurred.convertTo(channel, CvType.CV_32F, scale, -range[0] * scale);
+        List<Mat> channels = new ArrayList<>();
+        channels.add(channel);
+        channels.add(channel);
+        channels.add(channel);
+        Mat mask3Channel = new Mat();
+        Core.merge(channels, mask3Channel);
+
+        Mat redLayerFloat = new Mat();
+        redLayer.convertTo(redLayerFloat, CvType.CV_32F);
+        Mat warmLayerFloat = new Mat();
+        warmLayer.convertTo(warmLayerFloat, CvType.CV_32F);
+
+        Mat halation = new Mat();
+        Core.multiply(redLayerFloat, mask3Channel, halation, 1.0, CvType.CV_32F);
+        Mat warmEffect = new Mat();
+        Core.multiply(warmLayerFloat, mask3Channel, warmEffect, 1.0, CvType.CV_32F);
+        Core.add(halation, warmEffect, halation);
+
+        Mat halationConverted = new Mat();
+        halation.convertTo(halationConverted, img.type());
+        Core.addWeighted(img, 1.0, halationConverted, AMOUNT, 0, img);
+
+        redLayer.release();
+        warmLayer.release();
+        channel.release();
+        mask3Channel.release();
+        redLayerFloat.release();
+        warmLayerFloat.release();
+        halation.release();
+        warmEffect.release();
+        halationConverted.release();
+    }
+}
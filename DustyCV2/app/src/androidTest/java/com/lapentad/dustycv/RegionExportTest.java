@@ -0,0 +1,103 @@
+package com.lapentad.dustycv;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Rect;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that exporting band by band gives the same pixels as rendering the whole image at once,
+ * and that the streamed PNG decodes back to them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RegionExportTest {
+    private static final int BAND_HEIGHT = 128;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initLocal());
+    }
+
+    @Test
+    public void bandsMatchWholeImageRender() throws IOException {
+        for (GlowBlur.Mode mode : new GlowBlur.Mode[]{GlowBlur.Mode.EXACT, GlowBlur.Mode.PYRAMID}) {
+            for (EffectParameters.FilmType filmType : EffectParameters.FilmType.values()) {
+                EffectParameters parameters = new EffectParameters();
+                parameters.setFilmType(filmType);
+                Mat src = TestImages.testImage();
+
+                Mat expected = src.clone();
+                FilmPipeline.applyStages(expected, parameters, context(mode));
+
+                Mat actual = new Mat(src.size(), src.type());
+                int[] nextRow = {0};
+                RegionExporter.render(source(src), parameters, context(mode), BAND_HEIGHT, band -> {
+                    band.copyTo(actual.rowRange(nextRow[0], nextRow[0] + band.rows()));
+                    nextRow[0] += band.rows();
+                });
+                assertEquals(src.rows(), nextRow[0]);
+
+                assertEquals(mode + " " + filmType, 0, TestImages.countDifferent(expected, actual));
+
+                src.release();
+                expected.release();
+                actual.release();
+            }
+        }
+    }
+
+    @Test
+    public void streamedPngDecodesToRender() throws IOException {
+        EffectParameters parameters = new EffectParameters();
+        Mat src = TestImages.testImage();
+        Mat expected = src.clone();
+        FilmPipeline.applyStages(expected, parameters, new RenderContext());
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        RegionExporter.export(source(src), parameters, new RenderContext(), png, BAND_HEIGHT);
+        Mat decoded = Imgcodecs.imdecode(new MatOfByte(png.toByteArray()), Imgcodecs.IMREAD_UNCHANGED);
+        Mat actual = new Mat();
+        Imgproc.cvtColor(decoded, actual, Imgproc.COLOR_BGRA2RGBA);
+
+        assertEquals(0, TestImages.countDifferent(expected, actual));
+    }
+
+    private static RenderContext context(GlowBlur.Mode mode) {
+        RenderContext context = new RenderContext();
+        context.setBlurMode(RenderStage.HALATION, mode);
+        context.setBlurMode(RenderStage.BLOOM, mode);
+        return context;
+    }
+
+
+    private static TiledRenderer.TileSource source(Mat src) {
+        return new TiledRenderer.TileSource() {
+            @Override
+            public int getWidth() {
+                return src.cols();
+            }
+
+            @Override
+            public int getHeight() {
+                return src.rows();
+            }
+
+            @Override
+            public Mat read(Rect region) {
+                return src.submat(region).clone();
+            }
+        };
+    }
+}
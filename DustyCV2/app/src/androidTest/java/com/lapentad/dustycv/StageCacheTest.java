@@ -0,0 +1,101 @@
+package com.lapentad.dustycv;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a render restarted from the stage cache gives the same pixels as rendering every
+ * stage, whichever stage the changed parameter belongs to.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StageCacheTest {
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initLocal());
+    }
+
+    @Test
+    public void restartedRenderMatchesFullRender() {
+        Mat src = TestImages.testImage();
+        Object source = new Object();
+        StageCache cache = new StageCache();
+        EffectParameters parameters = new EffectParameters();
+
+        String[] changes = {"none", "grain", "bloom", "halation", "film type", "tint", "grain seed", "unchanged"};
+        for (String change : changes) {
+            switch (change) {
+                case "grain":
+                    parameters.setGrainIntensity(8.0f);
+                    break;
+                case "bloom":
+                    parameters.setBloomSize(61);
+                    break;
+                case "halation":
+                    parameters.setHalationIntensity(0.8f);
+                    break;
+                case "film type":
+                    parameters.setFilmType(EffectParameters.FilmType.KODAK_500T);
+                    break;
+                case "tint":
+                    parameters.setRedTint(1.1f);
+                    break;
+                case "grain seed":
+                    parameters.setGrainSeed(7);
+                    break;
+                default:
+                    break;
+            }
+
+            Mat actual = src.clone();
+            RenderContext cached = new RenderContext(0.5, new MatPool(), null);
+            cached.setStageCache(cache, source, 1);
+            FilmPipeline.applyStages(actual, parameters, cached);
+
+            Mat expected = src.clone();
+            FilmPipeline.applyStages(expected, parameters, new RenderContext(0.5, new MatPool(), null));
+
+            assertEquals(change, 0, TestImages.countDifferent(expected, actual));
+
+            actual.release();
+            expected.release();
+        }
+        cache.clear();
+        src.release();
+    }
+
+    @Test
+    public void newSourceVersionRendersEveryStage() {
+        Mat src = TestImages.testImage();
+        Object source = new Object();
+        StageCache cache = new StageCache();
+        EffectParameters parameters = new EffectParameters();
+
+        RenderContext first = new RenderContext(1.0, new MatPool(), null);
+        first.setStageCache(cache, source, 1);
+        FilmPipeline.applyStages(src.clone(), parameters, first);
+
+        // Same parameters, but the pixels changed
+        Mat changed = src.clone();
+        Imgproc.circle(changed, new Point(250, 300), 60, new Scalar(255, 255, 255, 255), -1);
+        Mat actual = changed.clone();
+        RenderContext second = new RenderContext(1.0, new MatPool(), null);
+        second.setStageCache(cache, source, 2);
+        FilmPipeline.applyStages(actual, parameters, second);
+
+        Mat expected = changed.clone();
+        FilmPipeline.applyStages(expected, parameters, new RenderContext());
+        assertEquals(0, TestImages.countDifferent(expected, actual));
+        cache.clear();
+    }
+
+}
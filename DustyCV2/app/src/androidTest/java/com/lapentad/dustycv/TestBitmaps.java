@@ -0,0 +1,27 @@
+package com.lapentad.dustycv;
+
+import android.graphics.Bitmap;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+
+// TestImages for the tests that render Bitmaps through ImageProcessor
+final class TestBitmaps {
+    private TestBitmaps() {
+    }
+
+    static Bitmap testImage() {
+        Mat rgba = TestImages.testImage();
+        Bitmap bitmap = Bitmap.createBitmap(rgba.cols(), rgba.rows(), Bitmap.Config.ARGB_8888);
+        Utils.matToBitmap(rgba, bitmap);
+        rgba.release();
+        return bitmap;
+    }
+
+    // RGBA copy of the bitmap's pixels, for the TestImages comparisons
+    static Mat toMat(Bitmap bitmap) {
+        Mat rgba = new Mat();
+        Utils.bitmapToMat(bitmap, rgba);
+        return rgba;
+    }
+}
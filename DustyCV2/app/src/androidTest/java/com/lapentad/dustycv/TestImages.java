@@ -0,0 +1,100 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The image the pipeline tests render and the comparisons they make on the result. Free of
+ * Android, so the benchmark module's host tests compile it too.
+ */
+final class TestImages {
+    private TestImages() {
+    }
+
+    static Mat testImage() {
+        return testImage(500, 600);
+    }
+
+    // Opaque RGBA gradient with noise and bright discs, so the masks have edges and highlights for
+    // the halation and bloom to spread
+    static Mat testImage(int cols, int rows) {
+        Mat rgb = new Mat(rows, cols, CvType.CV_8UC3);
+        for (int y = 0; y < rows; y++) {
+            rgb.row(y).setTo(new Scalar(y * 255.0 / rows, 120, 255 - y * 255.0 / rows));
+        }
+        Mat noise = new Mat(rgb.size(), rgb.type());
+        Core.setRNGSeed(3);
+        Core.randn(noise, 0, 25);
+        Core.add(rgb, noise, rgb);
+        Imgproc.circle(rgb, new Point(cols / 4.0, rows / 4.0), rows / 20, new Scalar(255, 250, 240), -1);
+        Imgproc.circle(rgb, new Point(cols * 0.75, rows * 0.75), rows / 12, new Scalar(255, 255, 255), -1);
+
+        Mat rgba = new Mat();
+        Imgproc.cvtColor(rgb, rgba, Imgproc.COLOR_RGB2RGBA);
+        rgb.release();
+        noise.release();
+        return rgba;
+    }
+
+    // The colour channels of an RGBA image, and its alpha channel
+    static Mat colour(Mat rgba) {
+        Mat rgb = new Mat();
+        Imgproc.cvtColor(rgba, rgb, Imgproc.COLOR_RGBA2RGB);
+        return rgb;
+    }
+
+    static Mat alpha(Mat rgba) {
+        Mat alpha = new Mat();
+        Core.extractChannel(rgba, alpha, 3);
+        return alpha;
+    }
+
+    // The comparisons below count and measure channel values, not pixels
+
+    static int countDifferent(Mat expected, Mat actual) {
+        return countDifferent(expected, actual, 0);
+    }
+
+    // Values that differ by more than tolerance levels
+    static int countDifferent(Mat expected, Mat actual, int tolerance) {
+        Mat diff = difference(expected, actual);
+        Mat above = new Mat();
+        Core.compare(diff, new Scalar(tolerance), above, Core.CMP_GT);
+        int count = Core.countNonZero(above);
+        diff.release();
+        above.release();
+        return count;
+    }
+
+    static double changedShare(Mat expected, Mat actual) {
+        return (double) countDifferent(expected, actual) / (expected.total() * expected.channels());
+    }
+
+    static int maxDifference(Mat expected, Mat actual) {
+        Mat diff = difference(expected, actual);
+        int max = (int) Core.minMaxLoc(diff).maxVal;
+        diff.release();
+        return max;
+    }
+
+    static double meanDifference(Mat expected, Mat actual) {
+        Mat diff = difference(expected, actual);
+        double mean = Core.mean(diff).val[0];
+        diff.release();
+        return mean;
+    }
+
+    // Absolute difference with one channel, so every value counts on its own
+    private static Mat difference(Mat expected, Mat actual) {
+        Mat diff = new Mat();
+        Core.absdiff(expected, actual, diff);
+        // The reshaped header shares the data and keeps it alive
+        Mat flat = diff.reshape(1);
+        diff.release();
+        return flat;
+    }
+}
@@ -0,0 +1,220 @@
+package com.lapentad.dustycv;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A batch as it is stored on disk while it runs: its images, film look and export settings, and
+ * which images are done. It is rewritten atomically whenever an image starts or finishes, so a
+ * batch interrupted by process death resumes with the images it had not finished yet.
+ */
+public class BatchCheckpoint {
+    private static final String TAG = "BatchCheckpoint";
+    private static final String DIRECTORY = "batches";
+
+    private final AtomicFile file;
+    private final List<Uri> uris;
+    private final EffectParameters parameters;
+    private final ExportSettings settings;
+    // Names outputs, so a resumed batch names them as the first run did
+    private final String timestamp;
+    private final Set<Integer> finished = new HashSet<>();
+    // Outputs being written when the checkpoint was saved, incomplete after a process death
+    private final Map<Integer, Uri> pending = new HashMap<>();
+
+    private BatchCheckpoint(AtomicFile file, List<Uri> uris, EffectParameters parameters, ExportSettings settings,
+                            String timestamp) {
+        this.file = file;
+        this.uris = uris;
+        this.parameters = parameters;
+        this.settings = settings;
+        this.timestamp = timestamp;
+    }
+
+    public static BatchCheckpoint create(Context context, List<Uri> uris, EffectParameters parameters,
+                                         ExportSettings settings) throws IOException {
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.getDefault()).format(new Date());
+        File directory = new File(context.getFilesDir(), DIRECTORY);
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        BatchCheckpoint checkpoint = new BatchCheckpoint(new AtomicFile(new File(directory, timestamp + ".json")),
+                new ArrayList<>(uris), new EffectParameters(parameters), new ExportSettings(settings), timestamp);
+        checkpoint.save();
+        return checkpoint;
+    }
+
+    public static BatchCheckpoint load(Context context, String name) throws IOException {
+        AtomicFile file = new AtomicFile(new File(new File(context.getFilesDir(), DIRECTORY), name));
+        try {
+            JSONObject json = new JSONObject(new String(file.readFully(), StandardCharsets.UTF_8));
+            List<Uri> uris = new ArrayList<>();
+            JSONArray uriArray = json.getJSONArray("uris");
+            for (int i = 0; i < uriArray.length(); i++) {
+                uris.add(Uri.parse(uriArray.getString(i)));
+            }
+            BatchCheckpoint checkpoint = new BatchCheckpoint(file, uris, readParameters(json.getJSONObject("parameters")),
+                    readSettings(json.getJSONObject("settings")), json.getString("timestamp"));
+            JSONArray finishedArray = json.getJSONArray("finished");
+            for (int i = 0; i < finishedArray.length(); i++) {
+                checkpoint.finished.add(finishedArray.getInt(i));
+            }
+            JSONObject pendingObject = json.getJSONObject("pending");
+            for (Iterator<String> keys = pendingObject.keys(); keys.hasNext(); ) {
+                String key = keys.next();
+                checkpoint.pending.put(Integer.parseInt(key), Uri.parse(pendingObject.getString(key)));
+            }
+            return checkpoint;
+        } catch (JSONException e) {
+            throw new IOException("Corrupt batch checkpoint " + name, e);
+        }
+    }
+
+    public String getName() {
+        return file.getBaseFile().getName();
+    }
+
+    public List<Uri> getUris() {
+        return uris;
+    }
+
+    public EffectParameters getParameters() {
+        return parameters;
+    }
+
+    public ExportSettings getSettings() {
+        return settings;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public synchronized Set<Integer> getFinished() {
+        return new HashSet<>(finished);
+    }
+
+    // An output is being written for the image at index
+    public synchronized void markPending(int index, Uri output) throws IOException {
+        pending.put(index, output);
+        save();
+    }
+
+    // The image at index is done, exported or failed for good, and is skipped on resume
+    public synchronized void markFinished(int index) throws IOException {
+        pending.remove(index);
+        finished.add(index);
+        save();
+    }
+
+    // Deletes outputs an interrupted run left half written, their images are rendered again
+    public synchronized void discardPending(ContentResolver contentResolver) throws IOException {
+        for (Uri output : pending.values()) {
+            try {
+                contentResolver.delete(output, null, null);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not delete incomplete output " + output + ": " + e.getMessage());
+            }
+        }
+        pending.clear();
+        save();
+    }
+
+    public void delete() {
+        file.delete();
+    }
+
+    private void save() throws IOException {
+        FileOutputStream out = file.startWrite();
+        try {
+            JSONObject json = new JSONObject();
+            JSONArray uriArray = new JSONArray();
+            for (Uri uri : uris) {
+                uriArray.put(uri.toString());
+            }
+            json.put("uris", uriArray);
+            json.put("parameters", writeParameters(parameters));
+            json.put("settings", writeSettings(settings));
+            json.put("timestamp", timestamp);
+            json.put("finished", new JSONArray(finished));
+            JSONObject pendingObject = new JSONObject();
+            for (Map.Entry<Integer, Uri> entry : pending.entrySet()) {
+                pendingObject.put(String.valueOf(entry.getKey()), entry.getValue().toString());
+            }
+            json.put("pending", pendingObject);
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            file.finishWrite(out);
+        } catch (JSONException | IOException e) {
+            file.failWrite(out);
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    private static JSONObject writeParameters(EffectParameters parameters) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("grainIntensity", parameters.getGrainIntensity());
+        json.put("halationIntensity", parameters.getHalationIntensity());
+        json.put("halationSize", parameters.getHalationSize());
+        json.put("bloomIntensity", parameters.getBloomIntensity());
+        json.put("bloomSize", parameters.getBloomSize());
+        json.put("grainSeed", parameters.getGrainSeed());
+        json.put("filmType", parameters.getFilmType().name());
+        json.put("redTint", parameters.getRedTint());
+        json.put("greenTint", parameters.getGreenTint());
+        json.put("blueTint", parameters.getBlueTint());
+        return json;
+    }
+
+    private static EffectParameters readParameters(JSONObject json) throws JSONException {
+        EffectParameters parameters = new EffectParameters();
+        parameters.setGrainIntensity((float) json.getDouble("grainIntensity"));
+        parameters.setHalationIntensity((float) json.getDouble("halationIntensity"));
+        parameters.setHalationSize(json.getInt("halationSize"));
+        parameters.setBloomIntensity((float) json.getDouble("bloomIntensity"));
+        parameters.setBloomSize(json.getInt("bloomSize"));
+        parameters.setGrainSeed(json.getLong("grainSeed"));
+        parameters.setFilmType(EffectParameters.FilmType.valueOf(json.getString("filmType")));
+        parameters.setRedTint((float) json.getDouble("redTint"));
+        parameters.setGreenTint((float) json.getDouble("greenTint"));
+        parameters.setBlueTint((float) json.getDouble("blueTint"));
+        return parameters;
+    }
+
+    private static JSONObject writeSettings(ExportSettings settings) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("format", settings.getFormat().name());
+        json.put("quality", settings.getQuality());
+        json.put("maxDimension", settings.getMaxDimension());
+        return json;
+    }
+
+    private static ExportSettings readSettings(JSONObject json) throws JSONException {
+        ExportSettings settings = new ExportSettings();
+        settings.setFormat(ExportSettings.Format.valueOf(json.getString("format")));
+        settings.setQuality(json.getInt("quality"));
+        settings.setMaxDimension(json.getInt("maxDimension"));
+        return settings;
+    }
+}
@@ -0,0 +1,271 @@
+package com.lapentad.dustycv;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Environment;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies one film look to many images. Each image is exported into Pictures/DustyCV as soon as it
+ * is done, by a pool of workers sized to the cores and to the memory the largest image needs and
+ * paced by a {@link BatchThrottle}. Grain plates are built once before the first image starts.
+ * Progress is recorded in a {@link BatchCheckpoint}, images it lists as finished are skipped.
+ */
+public class BatchProcessor {
+    private static final String TAG = "BatchProcessor";
+    private static final String OUTPUT_DIRECTORY = Environment.DIRECTORY_PICTURES + "/DustyCV";
+    private static final int BYTES_PER_PIXEL = 4;
+    // A lossy export holds the output bitmap and about as much again in tiles and encoder buffers
+    private static final int COPIES_PER_IMAGE = 2;
+
+    // Called on the batch's worker threads
+    public interface Listener {
+        void onImageProgress(int index, RenderStage stage, int completed, int total);
+
+        void onImageFinished(int index, Uri output);
+
+        void onImageFailed(int index, Exception e);
+    }
+
+    public static class Summary {
+        private final int succeeded;
+        private final int failed;
+        private final double imagesPerMinute;
+
+        Summary(int succeeded, int failed, double imagesPerMinute) {
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.imagesPerMinute = imagesPerMinute;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public double getImagesPerMinute() {
+            return imagesPerMinute;
+        }
+    }
+
+    private final Context context;
+    private final ContentResolver contentResolver;
+    private final ImageLoader imageLoader;
+    private final RegionExporter exporter;
+
+    private final List<RenderContext> activeContexts = new ArrayList<>();
+    private volatile boolean cancelled = false;
+
+    public BatchProcessor(Context context) {
+        this.context = context.getApplicationContext();
+        contentResolver = this.context.getContentResolver();
+        imageLoader = new ImageLoader(context);
+        exporter = new RegionExporter(context);
+    }
+
+    // Stops every image at its next stage boundary, images already exported are kept
+    public synchronized void cancel() {
+        cancelled = true;
+        for (RenderContext context : activeContexts) {
+            context.cancel();
+        }
+    }
+
+    // Runs the images of the checkpoint not finished yet, on the calling thread until all are done
+    public Summary run(BatchCheckpoint checkpoint, Listener listener) {
+        long start = System.nanoTime();
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        List<Uri> uris = checkpoint.getUris();
+        EffectParameters parameters = checkpoint.getParameters();
+        ExportSettings settings = checkpoint.getSettings();
+        Set<Integer> finished = checkpoint.getFinished();
+
+        // Headers first, the largest image decides how many images fit in memory at once
+        List<SourceImage> sources = new ArrayList<>();
+        long largestPixels = 1;
+        for (int i = 0; i < uris.size(); i++) {
+            if (finished.contains(i)) {
+                sources.add(null);
+                continue;
+            }
+            SourceImage source = new SourceImage(uris.get(i));
+            try {
+                imageLoader.readSize(source);
+                double scale = settings.getScale(source.getWidth(), source.getHeight());
+                largestPixels = Math.max(largestPixels,
+                        Math.round(source.getWidth() * scale) * Math.round(source.getHeight() * scale));
+                sources.add(source);
+            } catch (IOException | SecurityException e) {
+                Log.e(TAG, "Could not read " + uris.get(i) + ": " + e.getMessage());
+                failed.incrementAndGet();
+                markFinished(checkpoint, i);
+                listener.onImageFailed(i, e);
+                sources.add(null);
+            }
+        }
+
+        int workers = workerCount(largestPixels, imageLoader.availableBytes(), Runtime.getRuntime().availableProcessors());
+        Log.d(TAG, "Batch of " + uris.size() + " images, " + finished.size() + " already done, on " + workers + " workers");
+        GrainTextureCache.get(parameters);
+        BatchThrottle throttle = new BatchThrottle(context, workers);
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        // One scratch pool per worker, a shoot's images mostly share a size so buffers get reused
+        ThreadLocal<MatPool> pools = ThreadLocal.withInitial(MatPool::new);
+        ThreadLocal<String> pooledSizes = new ThreadLocal<>();
+        List<MatPool> allPools = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            SourceImage source = sources.get(i);
+            if (source == null) {
+                continue;
+            }
+            int index = i;
+            executor.execute(() -> {
+                MatPool pool = pools.get();
+                synchronized (allPools) {
+                    if (!allPools.contains(pool)) {
+                        allPools.add(pool);
+                    }
+                }
+                String size = source.getWidth() + "x" + source.getHeight();
+                if (!size.equals(pooledSizes.get())) {
+                    // Buffers sized for the previous image would never be hit again
+                    pool.clear();
+                    pooledSizes.set(size);
+                }
+                String name = "DustyCV_" + checkpoint.getTimestamp() + "_" + (index + 1) + "."
+                        + settings.getFormat().getExtension();
+                try {
+                    throttle.acquire();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Uri output = processImage(source, parameters, settings, pool, name, checkpoint, index,
+                            (stage, completed, total) -> listener.onImageProgress(index, stage, completed, total));
+                    succeeded.incrementAndGet();
+                    markFinished(checkpoint, index);
+                    listener.onImageFinished(index, output);
+                } catch (CancellationException e) {
+                    Log.d(TAG, "Image " + index + " cancelled");
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Image " + index + " failed: " + e.getMessage());
+                    failed.incrementAndGet();
+                    markFinished(checkpoint, index);
+                    listener.onImageFailed(index, e);
+                } finally {
+                    throttle.release();
+                }
+            });
+        }
+
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (cancelled) {
+                    executor.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        for (MatPool pool : allPools) {
+            pool.clear();
+        }
+
+        double minutes = (System.nanoTime() - start) / 60e9;
+        double imagesPerMinute = minutes > 0 ? succeeded.get() / minutes : 0;
+        Log.d(TAG, "Batch run done, " + succeeded.get() + " exported, " + failed.get() + " failed, "
+                + String.format(Locale.US, "%.1f", imagesPerMinute) + " images per minute");
+        return new Summary(succeeded.get(), failed.get(), imagesPerMinute);
+    }
+
+    private static void markFinished(BatchCheckpoint checkpoint, int index) {
+        try {
+            checkpoint.markFinished(index);
+        } catch (IOException e) {
+            // The image would only be rendered again after a process death
+            Log.w(TAG, "Could not checkpoint image " + index + ": " + e.getMessage());
+        }
+    }
+
+    private Uri processImage(SourceImage source, EffectParameters parameters, ExportSettings settings, MatPool pool,
+                             String name, BatchCheckpoint checkpoint, int index,
+                             RenderContext.ProgressListener progressListener) throws IOException {
+        double renderScale = settings.getScale(source.getWidth(), source.getHeight());
+        RenderContext context = new RenderContext(renderScale, pool, progressListener);
+        context.setNativeKernels(true);
+        context.setStageTracer(SystemStageTracer.INSTANCE);
+        synchronized (this) {
+            if (cancelled) {
+                throw new CancellationException("Batch cancelled");
+            }
+            activeContexts.add(context);
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Images.Media.DISPLAY_NAME, name);
+        values.put(MediaStore.Images.Media.MIME_TYPE, settings.getFormat().getMimeType());
+        values.put(MediaStore.Images.Media.RELATIVE_PATH, OUTPUT_DIRECTORY);
+        // Hidden from other apps until it is complete
+        values.put(MediaStore.Images.Media.IS_PENDING, 1);
+        Uri output = contentResolver.insert(MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY),
+                values);
+        if (output == null) {
+            throw new IOException("Could not create " + name);
+        }
+
+        boolean exported = false;
+        try {
+            checkpoint.markPending(index, output);
+        } catch (IOException e) {
+            contentResolver.delete(output, null, null);
+            throw e;
+        }
+        try (OutputStream out = new BufferedOutputStream(contentResolver.openOutputStream(output))) {
+            exporter.export(source, parameters, settings, context, out);
+            exported = true;
+        } finally {
+            synchronized (this) {
+                activeContexts.remove(context);
+            }
+            if (exported) {
+                values.clear();
+                values.put(MediaStore.Images.Media.IS_PENDING, 0);
+                contentResolver.update(output, values, null, null);
+            } else {
+                contentResolver.delete(output, null, null);
+            }
+        }
+        return output;
+    }
+
+    // As many workers as there are cores, as long as that many of the largest image fit in memory
+    static int workerCount(long largestPixels, long availableBytes, int cores) {
+        long bytesPerImage = largestPixels * BYTES_PER_PIXEL * COPIES_PER_IMAGE;
+        long fitting = availableBytes / Math.max(1, bytesPerImage);
+        return (int) Math.max(1, Math.min(cores, fitting));
+    }
+}
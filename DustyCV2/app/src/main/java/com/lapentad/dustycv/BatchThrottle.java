@@ -0,0 +1,89 @@
+package com.lapentad.dustycv;
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Lets the images of a batch start only as fast as the device can keep up. Fewer images render
+ * at once as the thermal headroom shrinks, on a low battery or in power save, and none while the
+ * device is critically hot. A long batch then settles at a pace it can sustain instead of running
+ * flat out until the SoC throttles hard.
+ */
+public class BatchThrottle {
+    private static final String TAG = "BatchThrottle";
+    // How far ahead the thermal headroom is forecast, about the time one image takes
+    private static final int FORECAST_SECONDS = 10;
+    // The platform only answers headroom queries about once a second
+    private static final long HEADROOM_INTERVAL_MILLIS = 5_000;
+    private static final long POLL_MILLIS = 2_000;
+    // Headroom 1.0 is where the device starts throttling severely
+    private static final float HALF_SPEED_HEADROOM = 0.75f;
+    private static final float ONE_AT_A_TIME_HEADROOM = 0.9f;
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    private final PowerManager powerManager;
+    private final BatteryManager batteryManager;
+    private final int maxConcurrent;
+    private int running = 0;
+    private int lastAllowed = -1;
+    private float headroom = Float.NaN;
+    private long headroomTime = 0;
+
+    public BatchThrottle(Context context, int maxConcurrent) {
+        powerManager = context.getSystemService(PowerManager.class);
+        batteryManager = context.getSystemService(BatteryManager.class);
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    // Blocks until one more image may start, which must be followed by release
+    public synchronized void acquire() throws InterruptedException {
+        while (running >= allowedConcurrent()) {
+            wait(POLL_MILLIS);
+        }
+        running++;
+    }
+
+    public synchronized void release() {
+        running--;
+        notifyAll();
+    }
+
+    private int allowedConcurrent() {
+        int allowed = maxConcurrent;
+        int status = powerManager.getCurrentThermalStatus();
+        float headroom = thermalHeadroom();
+        if (status >= PowerManager.THERMAL_STATUS_CRITICAL) {
+            allowed = 0;
+        } else if (status >= PowerManager.THERMAL_STATUS_SEVERE || headroom >= ONE_AT_A_TIME_HEADROOM) {
+            allowed = 1;
+        } else if (status >= PowerManager.THERMAL_STATUS_MODERATE || headroom >= HALF_SPEED_HEADROOM) {
+            allowed = Math.max(1, maxConcurrent / 2);
+        }
+
+        boolean lowBattery = !batteryManager.isCharging()
+                && batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY) < LOW_BATTERY_PERCENT;
+        if (powerManager.isPowerSaveMode() || lowBattery) {
+            allowed = Math.min(allowed, 1);
+        }
+
+        if (allowed != lastAllowed) {
+            Log.d(TAG, allowed + " of " + maxConcurrent + " images at once, thermal status " + status
+                    + ", headroom " + headroom);
+            lastAllowed = allowed;
+        }
+        return allowed;
+    }
+
+    // NaN when the device does not report headroom
+    private float thermalHeadroom() {
+        long now = SystemClock.elapsedRealtime();
+        if (headroomTime == 0 || now - headroomTime >= HEADROOM_INTERVAL_MILLIS) {
+            headroom = powerManager.getThermalHeadroom(FORECAST_SECONDS);
+            headroomTime = now;
+        }
+        return headroom;
+    }
+}
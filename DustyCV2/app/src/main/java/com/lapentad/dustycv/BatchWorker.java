@@ -0,0 +1,174 @@
+package com.lapentad.dustycv;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.ForegroundInfo;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import org.opencv.android.OpenCVLoader;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Runs a batch as a foreground job owned by WorkManager rather than by the activity, so it keeps
+ * going when the app is left and is started again after the process is killed. The
+ * {@link BatchCheckpoint} it works from lets a restarted job skip the images already exported.
+ */
+public class BatchWorker extends Worker {
+    private static final String TAG = "BatchWorker";
+    // Batches started while one runs queue up behind it
+    public static final String UNIQUE_NAME = "batch";
+    private static final String CHANNEL_ID = "batch";
+    private static final int NOTIFICATION_ID = 1;
+
+    private static final String KEY_CHECKPOINT = "checkpoint";
+    // Progress and output data
+    public static final String KEY_PROGRESS = "progress";
+    public static final String KEY_MAX = "max";
+    public static final String KEY_SUCCEEDED = "succeeded";
+    public static final String KEY_FAILED = "failed";
+    public static final String KEY_IMAGES_PER_MINUTE = "imagesPerMinute";
+    // Each image counts for 100 steps of the progress, so it moves with the stages of every image
+    private static final int STEPS_PER_IMAGE = 100;
+
+    private final BatchProcessor processor;
+
+    public BatchWorker(@NonNull Context context, @NonNull WorkerParameters parameters) {
+        super(context, parameters);
+        processor = new BatchProcessor(context);
+    }
+
+    // Saves the batch and queues it, uris need persisted read permission to survive process death
+    public static void enqueue(Context context, List<Uri> uris, EffectParameters parameters,
+                               ExportSettings settings) throws IOException {
+        BatchCheckpoint checkpoint = BatchCheckpoint.create(context, uris, parameters, settings);
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(BatchWorker.class)
+                .setInputData(new Data.Builder().putString(KEY_CHECKPOINT, checkpoint.getName()).build())
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(UNIQUE_NAME, ExistingWorkPolicy.APPEND_OR_REPLACE, request);
+    }
+
+    public static void cancel(Context context) {
+        WorkManager.getInstance(context).cancelUniqueWork(UNIQUE_NAME);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        // A batch resumed after the process was killed starts without MainActivity having loaded it
+        if (!OpenCVLoader.initLocal()) {
+            Log.e(TAG, "OpenCV initialization failed");
+            return Result.failure();
+        }
+        BatchCheckpoint checkpoint;
+        try {
+            checkpoint = BatchCheckpoint.load(context, getInputData().getString(KEY_CHECKPOINT));
+            // Outputs a killed run left half written, their images are rendered again
+            checkpoint.discardPending(context.getContentResolver());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load batch: " + e.getMessage());
+            return Result.failure();
+        }
+
+        List<Uri> uris = checkpoint.getUris();
+        int[] imageProgress = new int[uris.size()];
+        for (int index : checkpoint.getFinished()) {
+            imageProgress[index] = STEPS_PER_IMAGE;
+        }
+        setForegroundAsync(foregroundInfo(0, uris.size()));
+        publishProgress(imageProgress);
+
+        BatchProcessor.Summary summary = processor.run(checkpoint, new BatchProcessor.Listener() {
+            @Override
+            public void onImageProgress(int index, RenderStage stage, int completed, int total) {
+                imageProgress[index] = completed * STEPS_PER_IMAGE / Math.max(1, total);
+                publishProgress(imageProgress);
+            }
+
+            @Override
+            public void onImageFinished(int index, Uri output) {
+                imageFinished(index);
+            }
+
+            @Override
+            public void onImageFailed(int index, Exception e) {
+                imageFinished(index);
+            }
+
+            private void imageFinished(int index) {
+                imageProgress[index] = STEPS_PER_IMAGE;
+                int finished = publishProgress(imageProgress) / STEPS_PER_IMAGE;
+                setForegroundAsync(foregroundInfo(finished, imageProgress.length));
+            }
+        });
+
+        if (isStopped() && getStopReason() != WorkInfo.STOP_REASON_CANCELLED_BY_APP) {
+            // Stopped by the system, WorkManager runs the job again and it resumes from the checkpoint
+            return Result.retry();
+        }
+        checkpoint.delete();
+        for (Uri uri : uris) {
+            try {
+                context.getContentResolver().releasePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                // Not persisted or already released by a batch sharing the image
+            }
+        }
+        return Result.success(new Data.Builder()
+                .putInt(KEY_SUCCEEDED, summary.getSucceeded())
+                .putInt(KEY_FAILED, summary.getFailed())
+                .putDouble(KEY_IMAGES_PER_MINUTE, summary.getImagesPerMinute())
+                .build());
+    }
+
+    @Override
+    public void onStopped() {
+        processor.cancel();
+    }
+
+    // Returns the steps done so far
+    private synchronized int publishProgress(int[] imageProgress) {
+        int sum = 0;
+        for (int progress : imageProgress) {
+            sum += progress;
+        }
+        setProgressAsync(new Data.Builder()
+                .putInt(KEY_PROGRESS, sum)
+                .putInt(KEY_MAX, imageProgress.length * STEPS_PER_IMAGE)
+                .build());
+        return sum;
+    }
+
+    private ForegroundInfo foregroundInfo(int finished, int total) {
+        Context context = getApplicationContext();
+        NotificationManager notificationManager = context.getSystemService(NotificationManager.class);
+        notificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                context.getString(R.string.batch_channel_name), NotificationManager.IMPORTANCE_LOW));
+        Notification notification = new Notification.Builder(context, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_stat_name)
+                .setContentTitle(context.getString(R.string.batch_notification_title))
+                .setContentText(context.getString(R.string.batch_notification_progress, finished, total))
+                .setProgress(total, finished, false)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .addAction(new Notification.Action.Builder(null, context.getString(android.R.string.cancel),
+                        WorkManager.getInstance(context).createCancelPendingIntent(getId())).build())
+                .build();
+        return new ForegroundInfo(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+    }
+}
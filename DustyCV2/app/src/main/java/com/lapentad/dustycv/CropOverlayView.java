@@ -5,6 +5,7 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
@@ -100,6 +101,14 @@ public class CropOverlayView extends View {
     }
 
     public Bitmap getCroppedBitmap() {
+        Rect region = getCropRegion();
+        if (region == null) return null;
+        
+        return Bitmap.createBitmap(imageBitmap, region.left, region.top, region.width(), region.height());
+    }
+
+    // The crop rectangle in bitmap pixels
+    public Rect getCropRegion() {
         if (imageBitmap == null || cropRect == null) return null;
         
         // Convert crop rectangle coordinates back to bitmap space
@@ -114,7 +123,7 @@ public class CropOverlayView extends View {
         width = Math.min(width, imageBitmap.getWidth() - x);
         height = Math.min(height, imageBitmap.getHeight() - y);
         
-        return Bitmap.createBitmap(imageBitmap, x, y, width, height);
+        return new Rect(x, y, x + width, y + height);
     }
 
     @Override
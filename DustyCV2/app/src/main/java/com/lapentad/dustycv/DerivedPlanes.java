@@ -0,0 +1,99 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Single channel planes derived from the image being rendered, shared by the stages so that each
+ * is converted at most once per state of the image. A stage that changes the image calls
+ * {@link #imageChanged()}, or hands over a plane it produced for the new image as a by-product.
+ * <p>
+ * Also knows the pipeline's channel orders: three channel images are BGR, as OpenCV reads them,
+ * and four channel images are RGBA, as Android bitmaps store them, with alpha left untouched.
+ */
+public class DerivedPlanes {
+    private final Mat img;
+    private final MatPool pool;
+    // Gray and Lab L of the current image, null until needed or after the image changed
+    private Mat luminance;
+    private Mat lightness;
+
+    DerivedPlanes(Mat img, MatPool pool) {
+        this.img = img;
+        this.pool = pool;
+    }
+
+    Mat luminance() {
+        if (luminance == null) {
+            luminance = pool.acquire(img.size(), CvType.CV_8UC1);
+            Imgproc.cvtColor(img, luminance, isRgba(img) ? Imgproc.COLOR_RGBA2GRAY : Imgproc.COLOR_BGR2GRAY);
+        }
+        return luminance;
+    }
+
+    Mat lightness() {
+        if (lightness == null) {
+            // RGB2Lab ignores a fourth channel
+            Mat lab = pool.acquire(img.size(), CvType.CV_8UC3);
+            Imgproc.cvtColor(img, lab, isRgba(img) ? Imgproc.COLOR_RGB2Lab : Imgproc.COLOR_BGR2Lab);
+            lightness = pool.acquire(img.size(), CvType.CV_8UC1);
+            Core.extractChannel(lab, lightness, 0);
+            pool.release(lab);
+        }
+        return lightness;
+    }
+
+    // The lightness plane if it is known, without converting the image, or null
+    Mat knownLightness() {
+        return lightness;
+    }
+
+    // Detaches the lightness plane, the caller owns it afterwards
+    Mat takeLightness() {
+        Mat plane = lightness();
+        lightness = null;
+        return plane;
+    }
+
+    // Hands over the luminance of the changed image, computed by the stage that changed it
+    void setLuminance(Mat plane) {
+        pool.release(luminance);
+        luminance = plane;
+    }
+
+    // Hands over the lightness of the changed image, computed by the stage that changed it
+    void setLightness(Mat plane) {
+        pool.release(lightness);
+        lightness = plane;
+    }
+
+    void imageChanged() {
+        pool.release(luminance, lightness);
+        luminance = null;
+        lightness = null;
+    }
+
+    void release() {
+        imageChanged();
+    }
+
+    static boolean isRgba(Mat img) {
+        return img.channels() == 4;
+    }
+
+    static int blueIndex(Mat img) {
+        return isRgba(img) ? 2 : 0;
+    }
+
+    static int redIndex(Mat img) {
+        return isRgba(img) ? 0 : 2;
+    }
+
+    // A per-channel Scalar in the image's channel order, alpha is only used for RGBA images
+    static Scalar inOrder(Mat img, double blue, double green, double red, double alpha) {
+        return isRgba(img) ? new Scalar(red, green, blue, alpha) : new Scalar(blue, green, red);
+    }
+}
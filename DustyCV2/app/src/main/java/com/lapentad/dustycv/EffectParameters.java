@@ -1,5 +1,7 @@
 package com.lapentad.dustycv;
 
+import java.util.Objects;
+
 public class EffectParameters {
     // Film effect parameters
     private float grainIntensity = 5.0f;
@@ -7,6 +9,8 @@ public class EffectParameters {
     private int halationSize = 75;
     private float bloomIntensity = 0.3f;
     private int bloomSize = 45;
+    // Same seed, same grain: renders are reproducible and grain holds still while editing
+    private long grainSeed = 0;
     
     // Film simulation type
     public enum FilmType {
@@ -23,6 +27,23 @@ public class EffectParameters {
     private float redTint = 1.0f;    // Default is no tint adjustment (1.0)
     private float greenTint = 1.0f;
     private float blueTint = 1.0f;
+
+    public EffectParameters() {
+    }
+
+    // Copy constructor, used to hand a stable snapshot to background renders
+    public EffectParameters(EffectParameters other) {
+        this.grainIntensity = other.grainIntensity;
+        this.halationIntensity = other.halationIntensity;
+        this.halationSize = other.halationSize;
+        this.bloomIntensity = other.bloomIntensity;
+        this.bloomSize = other.bloomSize;
+        this.grainSeed = other.grainSeed;
+        this.filmType = other.filmType;
+        this.redTint = other.redTint;
+        this.greenTint = other.greenTint;
+        this.blueTint = other.blueTint;
+    }
     
     public float getGrainIntensity() {
         return grainIntensity;
@@ -64,6 +85,14 @@ public class EffectParameters {
         this.bloomSize = bloomSize;
     }
     
+    public long getGrainSeed() {
+        return grainSeed;
+    }
+
+    public void setGrainSeed(long grainSeed) {
+        this.grainSeed = grainSeed;
+    }
+    
     public FilmType getFilmType() {
         return filmType;
     }
@@ -164,4 +193,32 @@ public class EffectParameters {
                 return 1.0f;    // Normal grain
         }
     }
+
+    // Equal parameters render the same look, see RenderCache
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof EffectParameters)) {
+            return false;
+        }
+        EffectParameters other = (EffectParameters) o;
+        return Float.compare(grainIntensity, other.grainIntensity) == 0
+                && Float.compare(halationIntensity, other.halationIntensity) == 0
+                && halationSize == other.halationSize
+                && Float.compare(bloomIntensity, other.bloomIntensity) == 0
+                && bloomSize == other.bloomSize
+                && grainSeed == other.grainSeed
+                && filmType == other.filmType
+                && Float.compare(redTint, other.redTint) == 0
+                && Float.compare(greenTint, other.greenTint) == 0
+                && Float.compare(blueTint, other.blueTint) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(grainIntensity, halationIntensity, halationSize, bloomIntensity, bloomSize, grainSeed,
+                filmType, redTint, greenTint, blueTint);
+    }
 } 
\ No newline at end of file
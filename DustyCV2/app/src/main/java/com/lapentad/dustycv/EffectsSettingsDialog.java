@@ -27,6 +27,10 @@ public class EffectsSettingsDialog extends DialogFragment {
 
     public interface OnEffectsAppliedListener {
         void onEffectsApplied(EffectParameters parameters);
+
+        // Called on every change while the dialog is open, for a live preview
+        default void onEffectsChanged(EffectParameters parameters) {
+        }
     }
 
     public static EffectsSettingsDialog newInstance(EffectParameters parameters, OnEffectsAppliedListener listener) {
@@ -86,7 +90,10 @@ public class EffectsSettingsDialog extends DialogFragment {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
                 EffectParameters.FilmType selectedType = EffectParameters.FilmType.values()[position];
-                parameters.setFilmType(selectedType);
+                if (selectedType != parameters.getFilmType()) {
+                    parameters.setFilmType(selectedType);
+                    notifyChanged();
+                }
             }
 
             @Override
@@ -113,26 +120,41 @@ public class EffectsSettingsDialog extends DialogFragment {
         grainIntensitySlider.addOnChangeListener((slider, value, fromUser) -> {
             parameters.setGrainIntensity(value);
             updateTextView(textGrainIntensity, R.string.grain_intensity_format, value);
+            if (fromUser) {
+                notifyChanged();
+            }
         });
         
         halationIntensitySlider.addOnChangeListener((slider, value, fromUser) -> {
             parameters.setHalationIntensity(value);
             updateTextView(textHalationIntensity, R.string.halation_intensity_format, value);
+            if (fromUser) {
+                notifyChanged();
+            }
         });
         
         halationSizeSlider.addOnChangeListener((slider, value, fromUser) -> {
             parameters.setHalationSize((int) value);
             updateTextView(textHalationSize, R.string.halation_size_format, (int) value);
+            if (fromUser) {
+                notifyChanged();
+            }
         });
         
         bloomIntensitySlider.addOnChangeListener((slider, value, fromUser) -> {
             parameters.setBloomIntensity(value);
             updateTextView(textBloomIntensity, R.string.bloom_intensity_format, value);
+            if (fromUser) {
+                notifyChanged();
+            }
         });
         
         bloomSizeSlider.addOnChangeListener((slider, value, fromUser) -> {
             parameters.setBloomSize((int) value);
             updateTextView(textBloomSize, R.string.bloom_size_format, (int) value);
+            if (fromUser) {
+                notifyChanged();
+            }
         });
 
         applyButton.setOnClickListener(v -> {
@@ -143,6 +165,12 @@ public class EffectsSettingsDialog extends DialogFragment {
         });
     }
 
+    private void notifyChanged() {
+        if (listener != null) {
+            listener.onEffectsChanged(parameters);
+        }
+    }
+
     private void showFilmInfoDialog() {
         AlertDialog.Builder builder = new AlertDialog.Builder(requireContext());
         View infoView = getLayoutInflater().inflate(R.layout.dialog_film_info, null);
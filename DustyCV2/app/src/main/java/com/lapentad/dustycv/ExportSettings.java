@@ -0,0 +1,100 @@
+package com.lapentad.dustycv;
+
+import android.graphics.Bitmap;
+
+public class ExportSettings {
+    public enum Format {
+        JPEG(Bitmap.CompressFormat.JPEG, "image/jpeg", "jpg"),
+        WEBP(Bitmap.CompressFormat.WEBP_LOSSY, "image/webp", "webp"),
+        // Lossless, quality is ignored
+        PNG(Bitmap.CompressFormat.PNG, "image/png", "png");
+
+        private final Bitmap.CompressFormat compressFormat;
+        private final String mimeType;
+        private final String extension;
+
+        Format(Bitmap.CompressFormat compressFormat, String mimeType, String extension) {
+            this.compressFormat = compressFormat;
+            this.mimeType = mimeType;
+            this.extension = extension;
+        }
+
+        public Bitmap.CompressFormat getCompressFormat() {
+            return compressFormat;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    // Longest edges the export dialog offers, 0 keeps the full resolution
+    static final int[] MAX_DIMENSION_CHOICES = {0, 4096, 3072, 2048, 1080};
+
+    // A high quality JPEG is a fraction of the size of a PNG and hands off quickly to other apps
+    private Format format = Format.JPEG;
+    private int quality = 92;
+    // Longest edge of the exported image in pixels, 0 keeps the full resolution
+    private int maxDimension = 0;
+
+    public ExportSettings() {
+    }
+
+    public ExportSettings(ExportSettings other) {
+        this.format = other.format;
+        this.quality = other.quality;
+        this.maxDimension = other.maxDimension;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public void setQuality(int quality) {
+        this.quality = Math.max(0, Math.min(100, quality));
+    }
+
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    public void setMaxDimension(int maxDimension) {
+        this.maxDimension = Math.max(0, maxDimension);
+    }
+
+    // Position of the max dimension in MAX_DIMENSION_CHOICES, the full resolution one when it is
+    // not among them
+    int getMaxDimensionChoice() {
+        for (int i = 0; i < MAX_DIMENSION_CHOICES.length; i++) {
+            if (MAX_DIMENSION_CHOICES[i] == maxDimension) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    void setMaxDimensionChoice(int choice) {
+        setMaxDimension(MAX_DIMENSION_CHOICES[choice]);
+    }
+
+    // Size of the export relative to a width x height image, at most 1
+    public double getScale(int width, int height) {
+        int longEdge = Math.max(width, height);
+        if (maxDimension == 0 || longEdge <= maxDimension) {
+            return 1.0;
+        }
+        return (double) maxDimension / longEdge;
+    }
+}
@@ -0,0 +1,22 @@
+package com.lapentad.dustycv;
+
+import android.graphics.Bitmap;
+
+/**
+ * An implementation of the film pipeline for bitmaps. {@link #OPENCV} runs {@link FilmPipeline}
+ * on native Mats, {@link #JAVA} runs {@link JavaFilmPipeline} on the bitmap's pixels and hands
+ * frames large enough to tile to OpenCV. {@link #JAVA_ONLY} never touches OpenCV, for when its
+ * native library failed to load.
+ */
+public interface FilmBackend {
+    FilmBackend OPENCV = new OpenCvFilmBackend();
+    FilmBackend JAVA = new JavaFilmBackend(true);
+    FilmBackend JAVA_ONLY = new JavaFilmBackend(false);
+
+    /**
+     * Renders an ARGB_8888 bitmap. Writes the result into output when it can hold it, see
+     * {@link ImageProcessor#applyFilmLook(Bitmap, EffectParameters, RenderContext, Bitmap)}, and
+     * returns the bitmap holding the result.
+     */
+    Bitmap render(Bitmap bitmap, EffectParameters parameters, RenderContext context, Bitmap output);
+}
@@ -0,0 +1,686 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The film look on OpenCV Mats: colour balance, halation, tone curve, bloom and grain. Nothing
+ * here depends on Android, ImageProcessor brings bitmaps in and out of it, and the
+ * benchmark module compiles it for a desktop JVM.
+ */
+public class FilmPipeline {
+    // Above this many pixels the pipeline runs tile by tile
+    static final long TILED_MIN_PIXELS = 16_000_000L;
+    // Every stage but the last, whose output is the result
+    private static final RenderStage[] MEMOISED_STAGES = {
+            RenderStage.COLOR_BALANCE, RenderStage.HALATION, RenderStage.TONE_CURVE, RenderStage.BLOOM
+    };
+
+    /**
+     * Renders a BGR or RGBA Mat borrowed from the context's pool. Small images are rendered in
+     * place, large ones tile by tile into a new Mat from the pool, the source going back to the
+     * pool. Returns the Mat holding the result.
+     */
+    public static Mat render(Mat src, EffectParameters parameters, RenderContext context) {
+        if (src.total() <= TILED_MIN_PIXELS) {
+            applyStages(src, parameters, context);
+            return src;
+        }
+        // Large images are rendered tile by tile to bound native memory
+        Mat rendered = TiledRenderer.render(src, parameters, context, TiledRenderer.DEFAULT_TILE_SIZE);
+        context.getPool().release(src);
+        return rendered;
+    }
+
+    // Runs every stage in place on a BGR or RGBA image, or on one tile of it when the context is a
+    // tile context
+    static void applyStages(Mat src, EffectParameters parameters, RenderContext context) {
+        DerivedPlanes planes = new DerivedPlanes(src, context.getPool());
+        int cols = src.cols();
+        int rows = src.rows();
+        try {
+            // The brightness analysis counts towards the colour balance
+            context.beginStage(RenderStage.COLOR_BALANCE, cols, rows);
+
+            // Analyze image brightness
+            double brightness = getImageBrightness(planes, context);
+            double effectStrength = getEffectStrength(brightness);
+
+            // Each stage reads the image the stage before it left, so they run in order:
+            //   colour balance -> halation mask -> tone curve -> bloom mask -> grain blend
+            float grainMultiplier = parameters.getFilmGrainMultiplier();
+            double grainStrength = effectStrength * grainMultiplier * 4.0;
+            double imageArea = context.fullResolutionArea(context.frameArea(src));
+
+            // With a stage cache, the stages up to the first one whose parameters changed are restored
+            StageCache cache = context.getStageCache();
+            List<List<Object>> inputs = new ArrayList<>();
+            long session = 0;
+            int restored = 0;
+            if (cache != null) {
+                for (RenderStage stage : MEMOISED_STAGES) {
+                    inputs.add(stageInputs(stage, parameters, context));
+                }
+                session = context.beginStageCache();
+                restored = cache.restore(session, inputs, src, planes, context.getPool());
+            }
+
+            // Apply film type color adjustments
+            if (restored <= RenderStage.COLOR_BALANCE.ordinal()) {
+                applyFilmColorBalance(src, parameters, planes, context);
+                memoise(cache, session, RenderStage.COLOR_BALANCE, inputs, src, planes);
+            }
+            context.completeStage(RenderStage.COLOR_BALANCE);
+
+            // Apply effects with dynamic strength and parameters
+            context.beginStage(RenderStage.HALATION, cols, rows);
+            if (restored <= RenderStage.HALATION.ordinal()) {
+                addHalation(src, effectStrength, parameters, planes, context);
+                memoise(cache, session, RenderStage.HALATION, inputs, src, planes);
+            }
+            context.completeStage(RenderStage.HALATION);
+            context.beginStage(RenderStage.TONE_CURVE, cols, rows);
+            if (restored <= RenderStage.TONE_CURVE.ordinal()) {
+                applyToneCurve(src, effectStrength, parameters, planes, context);
+                memoise(cache, session, RenderStage.TONE_CURVE, inputs, src, planes);
+            }
+            context.completeStage(RenderStage.TONE_CURVE);
+            context.beginStage(RenderStage.BLOOM, cols, rows);
+            // With no stage cache to keep the bloomed image for, the native bloom pass blends the
+            // grain in as well
+            boolean grainBlended = false;
+            if (cache == null && context.useNativeKernels()) {
+                GrainLayer layer = prepareGrain(src.size(), imageArea, grainStrength, parameters, context);
+                try {
+                    addSoftBloom(src, effectStrength, parameters, planes, context, layer);
+                } finally {
+                    layer.release(context.getPool());
+                }
+                grainBlended = true;
+            } else if (restored <= RenderStage.BLOOM.ordinal()) {
+                addSoftBloom(src, effectStrength, parameters, planes, context);
+                memoise(cache, session, RenderStage.BLOOM, inputs, src, planes);
+            }
+            context.completeStage(RenderStage.BLOOM);
+
+            // Apply grain with film-specific adjustments
+            context.beginStage(RenderStage.GRAIN, cols, rows);
+            if (!grainBlended) {
+                addGrain(src, prepareGrain(src.size(), imageArea, grainStrength, parameters, context), context);
+            }
+            context.completeStage(RenderStage.GRAIN);
+        } finally {
+            context.abandonStage();
+            planes.release();
+        }
+    }
+
+    // The parameters a stage reads besides the image the stages before it left and the input's
+    // brightness, which the stage cache already keys on
+    static List<Object> stageInputs(RenderStage stage, EffectParameters parameters, RenderContext context) {
+        switch (stage) {
+            case COLOR_BALANCE:
+                return Arrays.asList(parameters.getRedTint(), parameters.getGreenTint(), parameters.getBlueTint());
+            case HALATION:
+                return Arrays.asList(parameters.getHalationSize(), parameters.getHalationIntensity(),
+                        context.getBlurMode(stage));
+            case TONE_CURVE:
+                // The film contrast, and the tints for the warm shift
+                return Arrays.asList(parameters.getFilmType(), parameters.getRedTint(), parameters.getBlueTint());
+            case BLOOM:
+                // The native blend rounds a float product OpenCV may fuse differently
+                return Arrays.asList(parameters.getBloomSize(), parameters.getBloomIntensity(),
+                        context.getBlurMode(stage), context.useNativeKernels());
+            case GRAIN:
+            default:
+                return Arrays.asList(parameters.getGrainIntensity(), parameters.getGrainSeed(), parameters.getFilmType());
+        }
+    }
+
+    private static void memoise(StageCache cache, long session, RenderStage stage, List<List<Object>> inputs, Mat img,
+                                DerivedPlanes planes) {
+        if (cache != null) {
+            cache.store(session, stage.ordinal(), inputs.get(stage.ordinal()), img, planes.knownLightness());
+        }
+    }
+
+    // How far outside a tile the pipeline reads: halation (edge detection, dilation, blur) feeds
+    // the bloom mask (dilation, two blurs), so their reaches add up
+    static int getHaloMargin(EffectParameters parameters, RenderContext context) {
+        int edgeReach = 3 + context.scaleIterations(2);  // 3x3 pre-blur, Sobel, non-max suppression, dilation
+        int halationReach = edgeReach + context.scaleKernelSize(parameters.getHalationSize()) / 2;
+        int bloomReach = context.scaleIterations(2) + context.scaleKernelSize(getBloomDetailSize(parameters)) / 2
+                + context.scaleKernelSize(parameters.getBloomSize()) / 2;
+        // Extra slack for Canny hysteresis, which can follow an edge well past its kernel reach,
+        // rounded so tile regions start on the grid of the deepest GlowBlur pyramid level
+        int grid = 1 << GlowBlur.MAX_LEVELS;
+        return (halationReach + bloomReach + 64 + grid - 1) / grid * grid;
+    }
+
+    // The detail pass of the bloom is a third of the spread, 15 for the default size of 45
+    static int getBloomDetailSize(EffectParameters parameters) {
+        return Math.max(3, parameters.getBloomSize() / 3) | 1;
+    }
+
+    static double getImageBrightness(DerivedPlanes planes, RenderContext context) {
+        return context.resolveBrightness(planes.luminance()); // Average brightness
+    }
+
+    static double getEffectStrength(double brightness) {
+        // Normalize brightness to 0-1 range
+        double normalizedBrightness = brightness / 255.0;
+        
+        // Use a stronger sigmoid function for more pronounced effects
+        return 0.4 + (0.5 / (1.0 + Math.exp(-12.0 * (normalizedBrightness - 0.5))));
+    }
+
+    static void applyFilmColorBalance(Mat img, EffectParameters parameters) {
+        // Get the color adjustments from parameters
+        float redTint = parameters.getRedTint();
+        float greenTint = parameters.getGreenTint();
+        float blueTint = parameters.getBlueTint();
+        
+        // Scale each channel in one pass, in the image's channel order
+        Core.multiply(img, DerivedPlanes.inOrder(img, blueTint, greenTint, redTint, 1.0), img);
+    }
+
+    // The colour balance stage, leaving the planes up to date with the balanced image
+    static void applyFilmColorBalance(Mat img, EffectParameters parameters, DerivedPlanes planes,
+                                      RenderContext context) {
+        planes.imageChanged();
+        if (!context.useNativeKernels()) {
+            applyFilmColorBalance(img, parameters);
+            return;
+        }
+        // The native pass leaves the luminance the halation mask starts from on the side
+        Mat luminance = context.getPool().acquire(img.size(), CvType.CV_8UC1);
+        try {
+            FilmKernels.colorBalance(img, DerivedPlanes.blueIndex(img), colorBalanceTables(img, parameters), luminance);
+        } catch (RuntimeException e) {
+            context.getPool().release(luminance);
+            throw e;
+        }
+        planes.setLuminance(luminance);
+    }
+
+    // Per channel in the image's order and value, the value scaled by the channel's tint with
+    // saturation, rounded like Core.multiply
+    static byte[] colorBalanceTables(Mat img, EffectParameters parameters) {
+        Scalar tints = DerivedPlanes.inOrder(img, parameters.getBlueTint(), parameters.getGreenTint(),
+                parameters.getRedTint(), 1.0);
+        byte[] tables = new byte[img.channels() << 8];
+        for (int c = 0; c < img.channels(); c++) {
+            for (int v = 0; v < 256; v++) {
+                tables[(c << 8) | v] = (byte) Math.min(255, Math.max(0, Math.rint(v * tints.val[c])));
+            }
+        }
+        return tables;
+    }
+
+    static void applyToneCurve(Mat img, double strength, EffectParameters parameters, DerivedPlanes planes,
+                                       RenderContext context) {
+        // The curve normalises L over the whole image, so find its range first
+        double[] range = context.resolveRange(FrameStats.Range.LIGHTNESS, planes.lightness());
+
+        // Everything else is a per-pixel function of the colour, applied through a cached 3D LUT.
+        // The same pass leaves the lightness of the result in the plane for the bloom.
+        Mat lightness = planes.takeLightness();
+        planes.imageChanged();
+        ToneCurveLut lut = ToneCurveLut.get(strength, parameters, range[0], range[1]);
+        if (context.useNativeKernels()) {
+            lut.applyNative(img, lightness);
+        } else {
+            lut.apply(img, lightness);
+        }
+        planes.setLightness(lightness);
+    }
+
+    // The film curve as a table of 8-bit L values
+    static byte[] getLut(double strength, float contrastFactor) {
+        byte[] lut = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            double x = i / 255.0;
+
+            // Film print characteristic curve (with contrast adjustment)
+            double y;
+            if (x < 0.2) {
+                // Rich shadows with detail
+                y = x * (0.7 * contrastFactor);
+            } else if (x < 0.5) {
+                // Smooth mid tones
+                y = 0.14 + (x - 0.2) * (0.8 * contrastFactor);
+            } else if (x < 0.8) {
+                // Gentle highlight roll off
+                y = 0.38 + (x - 0.5) * (0.9 * contrastFactor);
+            } else {
+                // Protected highlights
+                y = 0.65 + (x - 0.8) * (0.7 * contrastFactor);
+            }
+
+            // Apply strength with film-like response
+            double finalY = x * (1.0 - strength) + y * strength;
+            lut[i] = (byte) Math.min(255, Math.max(0, (int)(finalY * 255)));
+        }
+        return lut;
+    }
+
+    // Grain noise tiled over the frame, and the blend table for its strength or, for the native
+    // kernels, the gains it is built from
+    static class GrainLayer {
+        final Mat noise;
+        final byte[] blend;
+        final float[] gains;
+
+        GrainLayer(Mat noise, byte[] blend, float[] gains) {
+            this.noise = noise;
+            this.blend = blend;
+            this.gains = gains;
+        }
+
+        void release(MatPool pool) {
+            pool.release(noise);
+        }
+    }
+
+    // imageArea is the frame's area at full resolution
+    static GrainLayer prepareGrain(Size size, double imageArea, double strength, EffectParameters parameters,
+                                           RenderContext context) {
+        // Tile the cached, seeded grain plates across the frame
+        Mat noise = context.getPool().acquire(size, CvType.CV_8UC1);
+        GrainTextureCache.get(parameters).fill(noise, context.getFrameX(), context.getFrameY());
+
+        double baseIntensity = getGrainIntensity(imageArea, strength, parameters);
+        if (context.useNativeKernels()) {
+            return new GrainLayer(noise, null, grainGains(baseIntensity));
+        }
+        return new GrainLayer(noise, grainBlendTable(baseIntensity), null);
+    }
+
+    // Grain blend intensity for a frame of imageArea pixels at full resolution
+    static double getGrainIntensity(double imageArea, double strength, EffectParameters parameters) {
+        // Define a base area for normalization (e.g., 1 megapixel)
+        double baseArea = 1_000_000.0;
+        
+        // Calculate the scaling factor based on the image area
+        double scaleFactor = Math.sqrt(imageArea / baseArea);
+        
+        // Get parameters and adjust for image size
+        float grainIntensity = parameters.getGrainIntensity();
+
+        // CRITICAL: Use much more subtle grain intensity factor
+        // This is the main fix for the "burning" effect
+        return 0.02 * strength * Math.min(grainIntensity, 10) / Math.sqrt(scaleFactor);
+    }
+
+    // Blends a layer from prepareGrain into the image and releases the layer
+    static void addGrain(Mat img, GrainLayer layer, RenderContext context) {
+        try {
+            if (layer.gains != null) {
+                FilmKernels.blendGrain(img, DerivedPlanes.blueIndex(img), layer.noise, layer.gains);
+            } else {
+                blendGrain(img, layer.noise, layer.blend);
+            }
+        } finally {
+            layer.release(context.getPool());
+        }
+    }
+
+    // Applies monochrome grain to a BGR or RGBA image in one pass, see grainBlendTable
+    static void blendGrain(Mat img, Mat noise, double baseIntensity) {
+        blendGrain(img, noise, grainBlendTable(baseIntensity));
+    }
+
+    // The grain gain of a pixel depends on its luminance band and noise value only, and the output
+    // on that gain and the channel value, so the whole blend is tabulated with the float maths of
+    // the per-channel Mat version
+    static byte[] grainBlendTable(double baseIntensity) {
+        float[] gains = grainGains(baseIntensity);
+
+        // Output indexed (band << 16) | (noise << 8) | channel value
+        byte[] blend = new byte[3 << 16];
+        for (int band = 0; band < 3; band++) {
+            for (int n = 0; n < 256; n++) {
+                float grain = gains[(band << 8) | n];
+                for (int v = 0; v < 256; v++) {
+                    // Overlay blend mode: if grain < 0, result = 2 * channel * grain
+                    //                      if grain >= 0, result = 1 - 2 * (1 - channel) * (1 - grain)
+                    // Simplified for small grain values to: channel + channel * grain
+                    float channel = v;
+                    float result = channel * grain;
+                    blend[(band << 16) | (n << 8) | v] = (byte) Math.min(255, Math.max(0, Math.rint(channel + result)));
+                }
+            }
+        }
+        return blend;
+    }
+
+    // Grain gain indexed (luminance band << 8) | noise
+    static float[] grainGains(double baseIntensity) {
+        // Apply grain with luminance modulation (more in shadows, less in highlights)
+        double[] bandAmounts = {
+                baseIntensity * 1.5, // More grain in shadows (luminance up to 60)
+                baseIntensity,       // Normal grain in midtones
+                baseIntensity * 0.7  // Less grain in highlights (luminance above 200)
+        };
+        float[] gains = new float[3 << 8];
+        for (int band = 0; band < 3; band++) {
+            for (int n = 0; n < 256; n++) {
+                // Normalize noise to -1 to 1 range for proper overlay
+                gains[(band << 8) | n] = (float) ((n - 128f) / 128f * bandAmounts[band]);
+            }
+        }
+        return gains;
+    }
+
+    // Blends with a grainBlendTable. The luminance is computed in the pass with the fixed point
+    // weights of OpenCV's BGR2GRAY.
+    private static void blendGrain(Mat img, Mat noise, byte[] blend) {
+        byte[] luminanceBand = new byte[256];
+        for (int l = 0; l < 256; l++) {
+            luminanceBand[l] = (byte) (l <= 60 ? 0 : l > 200 ? 2 : 1);
+        }
+
+        int cols = img.cols();
+        int channels = img.channels();
+        int blue = DerivedPlanes.blueIndex(img);
+        int red = DerivedPlanes.redIndex(img);
+        int rowLength = cols * channels;
+        int bandRows = Math.max(1, (1 << 20) / rowLength);
+        byte[] pixels = new byte[bandRows * rowLength];
+        byte[] noiseValues = new byte[bandRows * cols];
+        for (int y = 0; y < img.rows(); y += bandRows) {
+            int rows = Math.min(bandRows, img.rows() - y);
+            byte[] pixelBand = rows == bandRows ? pixels : new byte[rows * rowLength];
+            byte[] noiseBand = rows == bandRows ? noiseValues : new byte[rows * cols];
+            img.get(y, 0, pixelBand);
+            noise.get(y, 0, noiseBand);
+            for (int i = 0, p = 0; i < noiseBand.length; i++, p += channels) {
+                int b = pixelBand[p + blue] & 0xFF;
+                int g = pixelBand[p + 1] & 0xFF;
+                int r = pixelBand[p + red] & 0xFF;
+                int luminance = (b * 3735 + g * 19235 + r * 9798 + (1 << 14)) >> 15;
+                int base = (luminanceBand[luminance] << 16) | ((noiseBand[i] & 0xFF) << 8);
+                // Colour channels only, alpha keeps its value
+                pixelBand[p + blue] = blend[base | b];
+                pixelBand[p + 1] = blend[base | g];
+                pixelBand[p + red] = blend[base | r];
+            }
+            img.put(y, 0, pixelBand);
+        }
+    }
+
+    static void addHalation(Mat img, double strength, EffectParameters parameters, DerivedPlanes planes,
+                                    RenderContext context) {
+        // Adjustable parameters
+        int brightnessThreshold = 200;    // Higher value = only brighter areas affected (0-255)
+        int blurKernelSize = context.scaleKernelSize(parameters.getHalationSize());  // Odd, scaled to the render size
+        double redIntensity = 255.0;      // Red color intensity (0-255)
+        double effectStrength = parameters.getHalationIntensity();  // Use parameter for strength
+        double warmTone = 0.4;            // Additional warm tone (0.0-1.0)
+        
+        // Edge detection parameters
+        int edgeThreshold1 = 150;         // Lower threshold for edge detection
+        int edgeThreshold2 = 255;         // Higher threshold for edge detection
+        double edgeBlend = 0.2;           // How much to blend edge detection with brightness (0.0-1.0)
+        
+        // Color settings, in the image's channel order
+        Scalar redColor = DerivedPlanes.inOrder(img, 0, 0, redIntensity, 0);         // Pure red
+        Scalar warmColor = DerivedPlanes.inOrder(img, 0, warmTone * 50, 50, 0);     // Warm tint
+
+        MatPool pool = context.getPool();
+        Size size = img.size();
+
+        // Step 1: Create edge detection mask
+        Mat gray = planes.luminance();
+        
+        // Apply Gaussian blur to reduce noise
+        Mat blurredGray = pool.acquire(size, CvType.CV_8UC1);
+        Imgproc.GaussianBlur(gray, blurredGray, new Size(3, 3), 0);
+        
+        // Detect edges using Canny
+        Mat edges = pool.acquire(size, CvType.CV_8UC1);
+        Imgproc.Canny(blurredGray, edges, edgeThreshold1, edgeThreshold2);
+        
+        // Dilate edges to make them more visible
+        Mat dilatedEdges = pool.acquire(size, CvType.CV_8UC1);
+        Imgproc.dilate(edges, dilatedEdges, pool.empty(), new Point(-1, -1), context.scaleIterations(2));
+
+        // Step 2: Create brightness mask
+        Mat thresholdMask = pool.acquire(size, CvType.CV_8UC1);
+        Imgproc.threshold(gray, thresholdMask, brightnessThreshold, 255, Imgproc.THRESH_BINARY);
+
+        // Step 3: Combine edge and brightness masks
+        Mat combinedMask = pool.acquire(size, CvType.CV_8UC1);
+        Core.addWeighted(dilatedEdges, edgeBlend, thresholdMask, 1.0 - edgeBlend, 0, combinedMask);
+
+        // Step 4: Apply Gaussian blur to create the halation effect
+        Mat blurred = pool.acquire(size, CvType.CV_8UC1);
+        GlowBlur.blur(combinedMask, blurred, blurKernelSize, context.getBlurMode(RenderStage.HALATION), pool);
+        pool.release(blurredGray, edges, dilatedEdges, thresholdMask, combinedMask);
+
+        // The mask is normalised over the whole frame, which may span several tiles
+        double[] maskRange;
+        try {
+            maskRange = context.resolveRange(FrameStats.Range.HALATION_MASK, blurred);
+        } catch (RuntimeException e) {
+            pool.release(blurred);
+            throw e;
+        }
+
+        // Step 5: Add the red and warm tinted mask to the image in a single pass
+        try {
+            if (context.useNativeKernels()) {
+                FilmKernels.compositeHalation(img, blurred,
+                        halationTintTable(halationTints(maskRange, redColor, warmColor, img.channels())),
+                        (float) (effectStrength * strength));
+            } else {
+                compositeHalation(img, blurred, maskRange, redColor, warmColor, effectStrength * strength);
+            }
+            planes.imageChanged();
+        } finally {
+            pool.release(blurred);
+        }
+    }
+
+    // Adds mask * (redColor + warmColor), normalised over maskRange and scaled by amount, to an
+    // image with saturation. The colours are in the image's channel order. Every intermediate only
+    // depends on the 8-bit mask and image values, so they are tabulated once with the float maths
+    // the OpenCV version used and the pass is lookups.
+    static void compositeHalation(Mat img, Mat mask, double[] maskRange, Scalar redColor, Scalar warmColor,
+                                  double amount) {
+        int channels = img.channels();
+        int[][] tint = halationTints(maskRange, redColor, warmColor, channels);
+        byte[] blend = halationBlendTable(amount);
+
+        int cols = img.cols();
+        int rowLength = cols * channels;
+        int bandRows = Math.max(1, (1 << 20) / rowLength);
+        byte[] pixels = new byte[bandRows * rowLength];
+        byte[] maskValues = new byte[bandRows * cols];
+        for (int y = 0; y < img.rows(); y += bandRows) {
+            int rows = Math.min(bandRows, img.rows() - y);
+            byte[] band = rows == bandRows ? pixels : new byte[rows * rowLength];
+            byte[] maskBand = rows == bandRows ? maskValues : new byte[rows * cols];
+            img.get(y, 0, band);
+            mask.get(y, 0, maskBand);
+            for (int i = 0, p = 0; i < maskBand.length; i++) {
+                int v = maskBand[i] & 0xFF;
+                for (int c = 0; c < channels; c++, p++) {
+                    band[p] = blend[(tint[c][v] << 8) | (band[p] & 0xFF)];
+                }
+            }
+            img.put(y, 0, band);
+        }
+    }
+
+    // Tinted 8-bit halation value per channel and mask value
+    static int[][] halationTints(double[] maskRange, Scalar redColor, Scalar warmColor, int channels) {
+        double scale = maskRange[1] - maskRange[0] > 0 ? 1.0 / (maskRange[1] - maskRange[0]) : 0.0;
+        float alpha = (float) scale;
+        float beta = (float) (-maskRange[0] * scale);
+        int[][] tint = new int[channels][256];
+        for (int v = 0; v < 256; v++) {
+            float m = v * alpha + beta;
+            for (int c = 0; c < channels; c++) {
+                float value = m * (float) redColor.val[c] + m * (float) warmColor.val[c];
+                tint[c][v] = (int) Math.min(255, Math.max(0, Math.rint(value)));
+            }
+        }
+        return tint;
+    }
+
+    // The tints of halationTints indexed (channel << 8) | mask value
+    static byte[] halationTintTable(int[][] tints) {
+        byte[] table = new byte[tints.length << 8];
+        for (int c = 0; c < tints.length; c++) {
+            for (int v = 0; v < 256; v++) {
+                table[(c << 8) | v] = (byte) tints[c][v];
+            }
+        }
+        return table;
+    }
+
+    // Blended output indexed (halation << 8) | pixel
+    static byte[] halationBlendTable(double amount) {
+        float weight = (float) amount;
+        byte[] blend = new byte[256 * 256];
+        for (int h = 0; h < 256; h++) {
+            for (int p = 0; p < 256; p++) {
+                blend[(h << 8) | p] = (byte) Math.min(255, Math.max(0, Math.rint((float) p + h * weight)));
+            }
+        }
+        return blend;
+    }
+
+    static void addSoftBloom(Mat img, double strength, EffectParameters parameters, DerivedPlanes planes,
+                                     RenderContext context) {
+        addSoftBloom(img, strength, parameters, planes, context, null);
+    }
+
+    // With the native kernels, blends grain into the bloomed pixels in the same pass unless it is null
+    static void addSoftBloom(Mat img, double strength, EffectParameters parameters, DerivedPlanes planes,
+                             RenderContext context, GrainLayer grain) {
+        MatPool pool = context.getPool();
+        Size size = img.size();
+
+        // Use the Lab L channel for better highlight detection, left behind by the tone curve
+        Mat lightness = planes.lightness();
+        
+        // Create highlight mask from L channel (lower threshold for more highlights)
+        Mat highlightMask = pool.acquire(size, CvType.CV_8UC1);
+        Imgproc.threshold(lightness, highlightMask, 180, 255, Imgproc.THRESH_BINARY);
+        
+        // Dilate highlights to make them more pronounced
+        Mat dilated = pool.acquire(size, CvType.CV_8UC1);
+        Imgproc.dilate(highlightMask, dilated, pool.empty(), new Point(-1, -1), context.scaleIterations(2));
+        
+        // Small blur for detail followed by a larger blur for spread, both sized by bloomSize
+        int detailKernelSize = context.scaleKernelSize(getBloomDetailSize(parameters));
+        int spreadKernelSize = context.scaleKernelSize(parameters.getBloomSize());
+        Mat bloomPass2 = pool.acquire(size, CvType.CV_8UC1);
+        GlowBlur.Mode blurMode = context.getBlurMode(RenderStage.BLOOM);
+        if (blurMode == GlowBlur.Mode.EXACT) {
+            Mat bloomPass1 = pool.acquire(size, CvType.CV_8UC1);
+            GlowBlur.blur(dilated, bloomPass1, detailKernelSize, blurMode, pool);
+            GlowBlur.blur(bloomPass1, bloomPass2, spreadKernelSize, blurMode, pool);
+            pool.release(bloomPass1);
+        } else {
+            // Two chained Gaussians are one Gaussian with the variances added, which the fast
+            // engines blur in roughly constant time whatever the bloom size
+            double detailSigma = GlowBlur.sigmaForKernel(detailKernelSize);
+            double spreadSigma = GlowBlur.sigmaForKernel(spreadKernelSize);
+            double sigma = Math.sqrt(detailSigma * detailSigma + spreadSigma * spreadSigma);
+            GlowBlur.blurSigma(dilated, bloomPass2, sigma, spreadKernelSize, blurMode, pool);
+        }
+        pool.release(highlightMask, dilated);
+        
+        // Normalize bloom over the whole frame, which may span several tiles
+        double[] bloomRange;
+        try {
+            bloomRange = context.resolveRange(FrameStats.Range.BLOOM_MASK, bloomPass2);
+        } catch (RuntimeException e) {
+            pool.release(bloomPass2);
+            throw e;
+        }
+        double effectStrength = strength * parameters.getBloomIntensity() * 2.5;  // Increased multiplier
+
+        if (context.useNativeKernels()) {
+            // Normalise, tint and blend in one pass over the 8-bit mask
+            try {
+                FilmKernels.compositeBloom(img, DerivedPlanes.blueIndex(img), bloomPass2, bloomTints(img, bloomRange),
+                        effectStrength, grain != null ? grain.noise : null, grain != null ? grain.gains : null);
+                planes.imageChanged();
+            } finally {
+                pool.release(bloomPass2);
+            }
+            return;
+        }
+
+        Mat bloom = pool.acquire(size, CvType.CV_32FC1);
+        normalizeToUnit(bloomPass2, bloom, bloomRange);
+        pool.release(bloomPass2);
+        
+        // Create a bloom mask with warm tint (yellow/orange), zero on alpha
+        int floatType = CvType.CV_32FC(img.channels());
+        Mat bloomMask = pool.acquire(size, floatType);
+        if (DerivedPlanes.isRgba(img)) {
+            bloomMask.setTo(Scalar.all(0));
+        }
+        Mat tinted = pool.acquire(size, CvType.CV_32FC1);
+        Core.insertChannel(bloom, bloomMask, DerivedPlanes.blueIndex(img));
+        Core.multiply(bloom, new Scalar(0.8), tinted);
+        Core.insertChannel(tinted, bloomMask, 1);  // Reduce green
+        Core.multiply(bloom, new Scalar(0.6), tinted);
+        Core.insertChannel(tinted, bloomMask, DerivedPlanes.redIndex(img));  // Reduce blue (warmer tint)
+        pool.release(bloom, tinted);
+        
+        // Convert original image to float
+        Mat imgFloat = pool.acquire(size, floatType);
+        img.convertTo(imgFloat, CvType.CV_32F);
+        
+        // Create bloom effect with direct addition (stronger effect)
+        Mat bloomEffect = pool.acquire(size, floatType);
+        Core.multiply(imgFloat, bloomMask, bloomEffect);
+        
+        // Blend with original using intensity from parameters
+        Core.addWeighted(imgFloat, 1.0, bloomEffect, effectStrength, 0, imgFloat);
+        // Convert back to original type
+        imgFloat.convertTo(img, img.type());
+        planes.imageChanged();
+
+        // Clean up
+        pool.release(bloomMask, imgFloat, bloomEffect);
+    }
+
+    // The warm tinted bloom mask per channel in the image's order and mask value, zero on alpha,
+    // rounded like the float Mats of addSoftBloom. convertTo rounds the scaled value once.
+    static float[] bloomTints(Mat img, double[] range) {
+        double scale = range[1] - range[0] > 0 ? 1.0 / (range[1] - range[0]) : 0.0;
+        float alpha = (float) scale;
+        float beta = (float) (-range[0] * scale);
+        Scalar tint = DerivedPlanes.inOrder(img, 1.0, 0.8, 0.6, 0);
+        float[] tints = new float[img.channels() << 8];
+        for (int m = 0; m < 256; m++) {
+            float unit = (float) (m * (double) alpha + beta);
+            for (int c = 0; c < img.channels(); c++) {
+                tints[(c << 8) | m] = (float) (unit * tint.val[c]);
+            }
+        }
+        return tints;
+    }
+
+    // Maps [min, max] onto [0, 1] as a float Mat, like Core.normalize with NORM_MINMAX
+    private static void normalizeToUnit(Mat src, Mat dst, double[] range) {
+        double scale = range[1] - range[0] > 0 ? 1.0 / (range[1] - range[0]) : 0.0;
+        src.convertTo(dst, CvType.CV_32F, scale, -range[0] * scale);
+    }
+}
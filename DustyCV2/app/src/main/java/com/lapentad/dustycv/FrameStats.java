@@ -0,0 +1,100 @@
+package com.lapentad.dustycv;
+
+/**
+ * Whole-frame statistics the pipeline needs when the image is rendered tile by tile: the mean
+ * brightness driving the effect strength and the NORM_MINMAX ranges of the halation mask, the
+ * L channel and the bloom mask. Tiles report their local values during statistics passes, and
+ * the merged values become visible to all tiles once the pass is committed.
+ */
+public class FrameStats {
+    public enum Range {
+        HALATION_MASK,
+        LIGHTNESS,
+        BLOOM_MASK
+    }
+
+    private final int width;
+    private final int height;
+
+    private boolean brightnessKnown = false;
+    private double brightness;
+    private double pendingBrightnessSum = 0;
+    private long pendingBrightnessCount = 0;
+
+    private final boolean[] rangeKnown = new boolean[Range.values().length];
+    private final double[] min = new double[Range.values().length];
+    private final double[] max = new double[Range.values().length];
+    private final double[] pendingMin = new double[Range.values().length];
+    private final double[] pendingMax = new double[Range.values().length];
+
+    public FrameStats(int width, int height) {
+        this.width = width;
+        this.height = height;
+        for (int i = 0; i < pendingMin.length; i++) {
+            pendingMin[i] = Double.POSITIVE_INFINITY;
+            pendingMax[i] = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public synchronized boolean isComplete() {
+        if (!brightnessKnown) {
+            return false;
+        }
+        for (boolean known : rangeKnown) {
+            if (!known) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized boolean isBrightnessKnown() {
+        return brightnessKnown;
+    }
+
+    synchronized double getBrightness() {
+        return brightness;
+    }
+
+    synchronized void accumulateBrightness(double sum, long count) {
+        pendingBrightnessSum += sum;
+        pendingBrightnessCount += count;
+    }
+
+    synchronized boolean isKnown(Range range) {
+        return rangeKnown[range.ordinal()];
+    }
+
+    synchronized double[] getRange(Range range) {
+        return new double[]{min[range.ordinal()], max[range.ordinal()]};
+    }
+
+    synchronized void accumulateRange(Range range, double localMin, double localMax) {
+        int i = range.ordinal();
+        pendingMin[i] = Math.min(pendingMin[i], localMin);
+        pendingMax[i] = Math.max(pendingMax[i], localMax);
+    }
+
+    // Publishes everything reported during the pass that just finished
+    synchronized void commitPass() {
+        if (!brightnessKnown && pendingBrightnessCount > 0) {
+            brightness = pendingBrightnessSum / pendingBrightnessCount;
+            brightnessKnown = true;
+        }
+        for (int i = 0; i < rangeKnown.length; i++) {
+            if (!rangeKnown[i] && pendingMin[i] <= pendingMax[i]) {
+                min[i] = pendingMin[i];
+                max[i] = pendingMax[i];
+                rangeKnown[i] = true;
+            }
+        }
+    }
+}
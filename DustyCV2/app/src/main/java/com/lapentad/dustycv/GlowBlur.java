@@ -0,0 +1,146 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Gaussian blurs for the wide glow masks of the halation and bloom stages. Besides the exact
+ * OpenCV blur it offers a pyramid engine, which blurs at a fraction of the resolution and
+ * upsamples, and a box engine, whose cost per pixel does not depend on the radius.
+ */
+public class GlowBlur {
+    public enum Mode {
+        // Imgproc.GaussianBlur at full resolution
+        EXACT,
+        // Down the image pyramid, blur, back up. Within 3 levels of EXACT on 8-bit masks.
+        PYRAMID,
+        // Three box blurs approximating the Gaussian, O(1) per pixel for any radius. Within 10 levels.
+        BOX
+    }
+
+    // Blurring at a level is only worth it while the remaining blur is at least this wide there
+    private static final double MIN_LEVEL_SIGMA = 2.0;
+    // Deepest pyramid level used, tile halos are kept on a grid of 1 << MAX_LEVELS pixels
+    static final int MAX_LEVELS = 5;
+
+    // Blurs src into dst like GaussianBlur with a kernelSize x kernelSize kernel and default sigma
+    public static void blur(Mat src, Mat dst, int kernelSize, Mode mode, MatPool pool) {
+        blurSigma(src, dst, sigmaForKernel(kernelSize), kernelSize, mode, pool);
+    }
+
+    // Blurs src into dst with the given sigma, kernelSize is only used by EXACT
+    static void blurSigma(Mat src, Mat dst, double sigma, int kernelSize, Mode mode, MatPool pool) {
+        switch (mode) {
+            case PYRAMID:
+                pyramidBlur(src, dst, sigma, kernelSize, pool);
+                break;
+            case BOX:
+                boxBlur(src, dst, sigma, pool);
+                break;
+            default:
+                Imgproc.GaussianBlur(src, dst, new Size(kernelSize, kernelSize), sigma);
+                break;
+        }
+    }
+
+    // The sigma OpenCV derives from a kernel size when none is given
+    static double sigmaForKernel(int kernelSize) {
+        return 0.3 * ((kernelSize - 1) * 0.5 - 1) + 0.8;
+    }
+
+    // Number of pyramid levels PYRAMID uses for a blur of the given sigma
+    static int pyramidLevels(double sigma) {
+        int levels = 0;
+        while (levels < MAX_LEVELS && residualSigma(sigma, levels + 1) >= MIN_LEVEL_SIGMA) {
+            levels++;
+        }
+        return levels;
+    }
+
+    // Sigma still to apply at the given level once the pyrDown and pyrUp filters are accounted for.
+    // Each of them is a [1 4 6 4 1] filter of variance 1 at its own resolution.
+    private static double residualSigma(double sigma, int levels) {
+        double pyramidVariance = 2.0 * (Math.pow(4, levels) - 1) / 3.0;
+        double variance = (sigma * sigma - pyramidVariance) / Math.pow(4, levels);
+        return variance > 0 ? Math.sqrt(variance) : 0.0;
+    }
+
+    private static void pyramidBlur(Mat src, Mat dst, double sigma, int kernelSize, MatPool pool) {
+        int levels = pyramidLevels(sigma);
+        if (levels == 0) {
+            Imgproc.GaussianBlur(src, dst, new Size(kernelSize, kernelSize), sigma);
+            return;
+        }
+
+        // Pad with the same reflection GaussianBlur uses at the border, otherwise each level would
+        // reflect about a different edge. The pad is a multiple of the deepest level's pixel.
+        int grid = 1 << levels;
+        int pad = ((int) Math.ceil(3 * sigma) + 2 * grid + grid - 1) / grid * grid;
+        Mat padded = pool.acquire(src.rows() + 2 * pad, src.cols() + 2 * pad, src.type());
+        Core.copyMakeBorder(src, padded, pad, pad, pad, pad, Core.BORDER_REFLECT_101);
+
+        Mat[] pyramid = new Mat[levels + 1];
+        pyramid[0] = padded;
+        try {
+            for (int i = 1; i <= levels; i++) {
+                Mat above = pyramid[i - 1];
+                pyramid[i] = pool.acquire((above.rows() + 1) / 2, (above.cols() + 1) / 2, src.type());
+                Imgproc.pyrDown(above, pyramid[i], pyramid[i].size());
+            }
+
+            Mat level = pyramid[levels];
+            Mat blurred = pool.acquire(level.size(), src.type());
+            Imgproc.GaussianBlur(level, blurred, new Size(0, 0), residualSigma(sigma, levels));
+            pool.release(level);
+            pyramid[levels] = blurred;
+
+            for (int i = levels - 1; i >= 0; i--) {
+                Imgproc.pyrUp(pyramid[i + 1], pyramid[i], pyramid[i].size());
+                pool.release(pyramid[i + 1]);
+                pyramid[i + 1] = null;
+            }
+            padded.submat(pad, pad + src.rows(), pad, pad + src.cols()).copyTo(dst);
+        } finally {
+            for (int i = 0; i <= levels; i++) {
+                pool.release(pyramid[i]);
+            }
+        }
+    }
+
+    // Three box blurs whose widths add up to the variance of the Gaussian
+    private static void boxBlur(Mat src, Mat dst, double sigma, MatPool pool) {
+        int[] widths = boxWidths(sigma);
+        Mat scratch = pool.acquire(src.size(), src.type());
+        try {
+            Mat from = src;
+            for (int i = 0; i < widths.length; i++) {
+                // Alternate so the last pass lands in dst
+                Mat to = (widths.length - i) % 2 == 1 ? dst : scratch;
+                Imgproc.blur(from, to, new Size(widths[i], widths[i]));
+                from = to;
+            }
+        } finally {
+            pool.release(scratch);
+        }
+    }
+
+    // Widths of the three box blurs BOX runs for a Gaussian of the given sigma
+    static int[] boxWidths(double sigma) {
+        int passes = 3;
+        int lower = (int) Math.floor(Math.sqrt(12 * sigma * sigma / passes + 1));
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+        int lowerPasses = (int) Math.round((12 * sigma * sigma - passes * lower * lower - 4 * passes * lower - 3 * passes)
+                / (-4.0 * lower - 4));
+
+        int[] widths = new int[passes];
+        for (int i = 0; i < passes; i++) {
+            widths[i] = i < lowerPasses ? lower : upper;
+        }
+        return widths;
+    }
+}
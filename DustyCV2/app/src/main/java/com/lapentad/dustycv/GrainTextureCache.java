@@ -0,0 +1,179 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Seeded grain noise plates, generated once per film stock, grain intensity bucket and seed and
+ * then tiled across the frame. Each plate cell of the frame picks one of the plates in one of
+ * four rotations from a hash of its position, so grain is the same for the same seed wherever
+ * and however often the frame is rendered, tile by tile included. Plates live off-heap in one
+ * direct buffer per entry, 4 MB each, which both the OpenCV and the Java pipeline read.
+ */
+public class GrainTextureCache {
+    static final int PLATE_SIZE = 512;
+    private static final int PLATE_AREA = PLATE_SIZE * PLATE_SIZE;
+    private static final int PLATES = 4;
+    // Unrotated, then 90 degrees clockwise, 180 degrees and 90 degrees counterclockwise
+    private static final int ROTATIONS = 4;
+    private static final int CACHE_SIZE = 6;
+    // Matches the 0.5 step of the grain slider
+    private static final float INTENSITY_STEP = 0.5f;
+
+    private static final Map<String, GrainTextureCache> cache = new LinkedHashMap<String, GrainTextureCache>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GrainTextureCache> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // PLATE_SIZE x PLATE_SIZE noise around 128, PLATES plates in each of ROTATIONS orientations,
+    // PLATE_AREA bytes apart
+    private final ByteBuffer variants;
+    private final long seed;
+
+    private GrainTextureCache(ByteBuffer variants, long seed) {
+        this.variants = variants;
+        this.seed = seed;
+    }
+
+    public static GrainTextureCache get(EffectParameters parameters) {
+        float intensity = Math.round(parameters.getGrainIntensity() / INTENSITY_STEP) * INTENSITY_STEP;
+        // Every stock gets its own grain pattern for the same seed
+        long seed = mix(parameters.getGrainSeed() * 31 + parameters.getFilmType().ordinal());
+        String key = parameters.getFilmType() + "/" + intensity + "/" + parameters.getGrainSeed();
+        synchronized (cache) {
+            GrainTextureCache plates = cache.get(key);
+            if (plates == null) {
+                plates = build(intensity, seed);
+                cache.put(key, plates);
+            }
+            return plates;
+        }
+    }
+
+    private static GrainTextureCache build(float grainIntensity, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer variants = ByteBuffer.allocateDirect(PLATES * ROTATIONS * PLATE_AREA);
+        for (int i = 0; i < PLATES; i++) {
+            // Create grain with adjustable intensity - lower standard deviation for more subtle effect
+            double stdDev = 15 + (grainIntensity / 15.0) * 15;  // Range from 15 to 30
+            byte[] noise = gaussianPlate(random, stdDev);
+
+            // Optional: For very high grain settings, add some structure
+            if (grainIntensity > 10.0) {
+                // Create structured grain for higher intensities
+                byte[] structuredNoise = gaussianPlate(random, stdDev * 1.5);
+
+                // Threshold to create clumps and blend with base noise, with the float maths of
+                // Imgproc.threshold and Core.addWeighted
+                double structureFactor = (grainIntensity - 10.0) / 5.0; // 0.0 to 1.0
+                float noiseWeight = (float) (1.0 - structureFactor * 0.5);
+                float structureWeight = (float) (structureFactor * 0.5);
+                for (int p = 0; p < noise.length; p++) {
+                    float structure = (structuredNoise[p] & 0xFF) > 170 ? 255f : 0f;
+                    float value = (noise[p] & 0xFF) * noiseWeight + structure * structureWeight;
+                    noise[p] = (byte) Math.min(255, Math.max(0, Math.rint(value)));
+                }
+            }
+
+            // Plate i's variants follow each other, unrotated first
+            variants.put(noise);
+            for (int r = 1; r < ROTATIONS; r++) {
+                variants.put(rotate(noise, r));
+            }
+        }
+        variants.flip();
+        return new GrainTextureCache(variants, seed);
+    }
+
+    private static byte[] gaussianPlate(Random random, double stdDev) {
+        byte[] values = new byte[PLATE_AREA];
+        for (int i = 0; i < values.length; i++) {
+            long value = Math.round(128 + random.nextGaussian() * stdDev);
+            values[i] = (byte) Math.min(255, Math.max(0, value));
+        }
+        return values;
+    }
+
+    // The plate turned clockwise by quarterTurns quarter turns, like Core.rotate
+    private static byte[] rotate(byte[] plate, int quarterTurns) {
+        int last = PLATE_SIZE - 1;
+        byte[] rotated = new byte[plate.length];
+        for (int y = 0, i = 0; y < PLATE_SIZE; y++) {
+            for (int x = 0; x < PLATE_SIZE; x++, i++) {
+                int sourceX;
+                int sourceY;
+                if (quarterTurns == 1) {
+                    sourceX = y;
+                    sourceY = last - x;
+                } else if (quarterTurns == 2) {
+                    sourceX = last - x;
+                    sourceY = last - y;
+                } else {
+                    sourceX = last - y;
+                    sourceY = x;
+                }
+                rotated[i] = plate[sourceY * PLATE_SIZE + sourceX];
+            }
+        }
+        return rotated;
+    }
+
+    // Fills a CV_8UC1 Mat whose top left pixel sits at (frameX, frameY) in the frame with grain
+    public void fill(Mat noise, int frameX, int frameY) {
+        int cols = noise.cols();
+        int bandRows = Math.max(1, Math.min(noise.rows(), (1 << 20) / cols));
+        byte[] band = new byte[bandRows * cols];
+        for (int y = 0; y < noise.rows(); y += bandRows) {
+            int rows = Math.min(bandRows, noise.rows() - y);
+            fill(band, cols, rows, frameX, frameY + y);
+            noise.put(y, 0, rows == bandRows ? band : Arrays.copyOf(band, rows * cols));
+        }
+    }
+
+    // Fills rows rows of width pixels, packed in noise, whose top left pixel sits at (frameX,
+    // frameY) in the frame with grain
+    public void fill(byte[] noise, int width, int rows, int frameX, int frameY) {
+        // Bands are filled from several threads, each reads through its own view
+        ByteBuffer plates = variants.duplicate();
+        int firstColumn = frameX / PLATE_SIZE;
+        int firstRow = frameY / PLATE_SIZE;
+        int lastColumn = (frameX + width - 1) / PLATE_SIZE;
+        int lastRow = (frameY + rows - 1) / PLATE_SIZE;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                // Part of this plate cell that falls inside the band, in frame coordinates
+                int x0 = Math.max(frameX, column * PLATE_SIZE);
+                int y0 = Math.max(frameY, row * PLATE_SIZE);
+                int x1 = Math.min(frameX + width, (column + 1) * PLATE_SIZE);
+                int y1 = Math.min(frameY + rows, (row + 1) * PLATE_SIZE);
+
+                int plate = variantIndex(column, row) * PLATE_AREA;
+                int plateX = x0 - column * PLATE_SIZE;
+                for (int y = y0; y < y1; y++) {
+                    int plateY = y - row * PLATE_SIZE;
+                    plates.position(plate + plateY * PLATE_SIZE + plateX);
+                    plates.get(noise, (y - frameY) * width + x0 - frameX, x1 - x0);
+                }
+            }
+        }
+    }
+
+    private int variantIndex(int column, int row) {
+        long hash = mix(seed ^ ((long) column << 32 | (row & 0xFFFFFFFFL)));
+        return (int) ((hash >>> 1) % (PLATES * ROTATIONS));
+    }
+
+    // SplitMix64 finaliser
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,141 @@
+package com.lapentad.dustycv;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageDecoder;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a {@link SourceImage} subsampled to what it is needed for and what memory allows. The
+ * size is picked from the image header before any pixel is decoded, so a large photo is never held
+ * at full resolution unless an export asks for it.
+ */
+public class ImageLoader {
+    private static final String TAG = "ImageLoader";
+    private static final int BYTES_PER_PIXEL = 4;
+    // The image edited on screen stays below the size the pipeline renders without tiling
+    private static final long EDIT_MAX_PIXELS = 16_000_000L;
+    // Copies of the image alive at once: while editing the image and a crop of it,
+    // while exporting the image, the pipeline's copy and the result
+    private static final int EDIT_COPIES = 2;
+    private static final int EXPORT_COPIES = 3;
+    // Decode at least this many pixels however low memory is
+    private static final long MIN_PIXELS = 1_000_000L;
+
+    private final Context context;
+
+    public ImageLoader(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    // Decodes the image for editing, reading its full resolution size into source the first time
+    public Bitmap load(SourceImage source) throws IOException {
+        return decode(source, EDIT_MAX_PIXELS, EDIT_COPIES);
+    }
+
+    // Decodes the region in use at full resolution, or the largest size memory allows
+    public Bitmap loadForExport(SourceImage source) throws IOException {
+        return decode(source, Long.MAX_VALUE, EXPORT_COPIES);
+    }
+
+    // Reads the full resolution size into source from the image header, without decoding pixels
+    public void readSize(SourceImage source) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = context.getContentResolver().openInputStream(source.getUri())) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Could not read the size of " + source.getUri());
+        }
+        int orientation;
+        try (InputStream in = context.getContentResolver().openInputStream(source.getUri())) {
+            orientation = new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        }
+        // ImageDecoder applies the orientation, quarter turns swap the sides
+        boolean swapped = orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                || orientation == ExifInterface.ORIENTATION_ROTATE_90
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE
+                || orientation == ExifInterface.ORIENTATION_ROTATE_270;
+        if (swapped) {
+            source.setFullSize(options.outHeight, options.outWidth);
+        } else {
+            source.setFullSize(options.outWidth, options.outHeight);
+        }
+    }
+
+    // Decodes the region in use scaled by scale, for exports smaller than the image
+    public Bitmap loadScaled(SourceImage source, double scale) throws IOException {
+        ImageDecoder.Source decoderSource = ImageDecoder.createSource(context.getContentResolver(), source.getUri());
+        return ImageDecoder.decodeBitmap(decoderSource, (decoder, info, unused) -> {
+            int width = Math.max(1, (int) Math.round(source.getFullWidth() * scale));
+            int height = Math.max(1, (int) Math.round(source.getFullHeight() * scale));
+            decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+            decoder.setTargetSize(width, height);
+            if (source.isCropped()) {
+                decoder.setCrop(scaledRegion(source.getCrop(), scale, width, height));
+            }
+        });
+    }
+
+    private Bitmap decode(SourceImage source, long maxPixels, int copies) throws IOException {
+        long budget = Math.min(maxPixels, memoryBudgetPixels(copies));
+        ImageDecoder.Source decoderSource = ImageDecoder.createSource(context.getContentResolver(), source.getUri());
+        return ImageDecoder.decodeBitmap(decoderSource, (decoder, info, unused) -> {
+            if (!source.hasSize()) {
+                source.setFullSize(info.getSize().getWidth(), info.getSize().getHeight());
+            }
+            Rect crop = source.getCrop();
+            int sampleSize = sampleSize(crop.width(), crop.height(), budget);
+
+            // The pipeline reads the pixels on the CPU, a hardware bitmap would have to be copied first
+            decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+            decoder.setTargetSampleSize(sampleSize);
+            if (source.isCropped()) {
+                decoder.setCrop(scaledRegion(crop, 1.0 / sampleSize,
+                        source.getFullWidth() / sampleSize, source.getFullHeight() / sampleSize));
+            }
+            Log.d(TAG, "Decoding " + crop.width() + "x" + crop.height() + " of " + source.getFullWidth() + "x"
+                    + source.getFullHeight() + " with sample size " + sampleSize + ", budget " + budget + " pixels");
+        });
+    }
+
+    // Pixels one decoded image may take, given how many copies of it will be alive at once
+    private long memoryBudgetPixels(int copies) {
+        return Math.max(MIN_PIXELS, availableBytes() / ((long) copies * BYTES_PER_PIXEL));
+    }
+
+    // Memory images may take, half of what is available before the low memory threshold
+    long availableBytes() {
+        ActivityManager activityManager = context.getSystemService(ActivityManager.class);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        return Math.max(0, memoryInfo.availMem - memoryInfo.threshold) / 2;
+    }
+
+    // Powers of two, which decoders can apply while decoding
+    static int sampleSize(int width, int height, long maxPixels) {
+        int sampleSize = 1;
+        while ((long) (width / sampleSize) * (height / sampleSize) > maxPixels) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    // The crop in the coordinates of the width x height scaled image, which is what setCrop expects
+    private static Rect scaledRegion(Rect crop, double scale, int width, int height) {
+        int left = Math.min((int) Math.floor(crop.left * scale), width - 1);
+        int top = Math.min((int) Math.floor(crop.top * scale), height - 1);
+        int right = Math.min(width, (int) Math.ceil(crop.right * scale));
+        int bottom = Math.min(height, (int) Math.ceil(crop.bottom * scale));
+        return new Rect(left, top, Math.max(right, left + 1), Math.max(bottom, top + 1));
+    }
+}
@@ -0,0 +1,30 @@
+package com.lapentad.dustycv;
+
+import android.graphics.Bitmap;
+
+// Renders bitmaps with JavaFilmPipeline. Images large enough to be tiled go to OpenCV unless it is
+// missing, the Java pipeline holds the whole frame and its masks on the heap.
+class JavaFilmBackend implements FilmBackend {
+    private final boolean tileWithOpenCv;
+
+    JavaFilmBackend(boolean tileWithOpenCv) {
+        this.tileWithOpenCv = tileWithOpenCv;
+    }
+
+    @Override
+    public Bitmap render(Bitmap bitmap, EffectParameters parameters, RenderContext context, Bitmap output) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (tileWithOpenCv && (long) width * height > FilmPipeline.TILED_MIN_PIXELS) {
+            return FilmBackend.OPENCV.render(bitmap, parameters, context, output);
+        }
+
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        JavaFilmPipeline.render(pixels, width, height, parameters, context);
+
+        return ImageProcessor.writeResult(output, width, height, context,
+                result -> result.setPixels(pixels, 0, width, 0, 0, width, height));
+    }
+}
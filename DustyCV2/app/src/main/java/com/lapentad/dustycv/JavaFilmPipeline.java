@@ -0,0 +1,638 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.Scalar;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+/**
+ * The film look in plain Java, on ARGB pixels as Bitmap.getPixels returns them. Runs the stages of
+ * {@link FilmPipeline} with the same tables, but the per-pixel work of a stage and of the stage
+ * after it is fused into one pass over the int pixels, and the masks are byte planes. Every pass
+ * is split into bands of rows run on the common fork-join pool. Needs no native code, so it also
+ * renders where the OpenCV library does not load and on a plain JVM.
+ * <p>
+ * Results are within a few levels of FilmPipeline's: the Lab conversions are
+ * {@link LabConversion}'s, and the glow blurs are a separable Gaussian for EXACT and the three box
+ * blurs of BOX for the other engines. Images are rendered whole, there is no tiling.
+ */
+public class JavaFilmPipeline {
+    // Mask settings of FilmPipeline.addHalation and addSoftBloom
+    private static final int HALATION_THRESHOLD = 200;
+    private static final int EDGE_THRESHOLD_LOW = 150;
+    private static final int EDGE_THRESHOLD_HIGH = 255;
+    private static final float EDGE_BLEND = 0.2f;
+    private static final int BLOOM_THRESHOLD = 180;
+    // Halation colours in BGR order
+    private static final Scalar HALATION_RED = new Scalar(0, 0, 255.0);
+    private static final Scalar HALATION_WARM = new Scalar(0, 0.4 * 50, 50);
+    // Bloom tint of the blue, green and red channels
+    private static final float[] BLOOM_TINT = {1.0f, 0.8f, 0.6f};
+
+    // Canny pixel classes before hysteresis
+    private static final byte WEAK = 0;
+    private static final byte NONE = 1;
+    private static final byte STRONG = 2;
+    private static final byte TRACED = 3;
+    // tan(22.5 degrees) in Canny's fixed point
+    private static final int CANNY_SHIFT = 15;
+    private static final int TG22 = (int) (0.4142135623730950488 * (1 << CANNY_SHIFT) + 0.5);
+
+    // Planes of the last render, taken by the next render of the same size
+    private static final AtomicReference<Planes> spare = new AtomicReference<>();
+
+    // Single channel planes a render works in, which stage uses which is noted where they are used
+    private static final class Planes {
+        final byte[] first;
+        final byte[] second;
+        final byte[] third;
+        final short[] wide;
+
+        Planes(int size) {
+            first = new byte[size];
+            second = new byte[size];
+            third = new byte[size];
+            wide = new short[size];
+        }
+    }
+
+    private interface BandTask {
+        void run(int band, int startRow, int endRow);
+    }
+
+    /**
+     * Renders ARGB pixels in place, alpha is left untouched. The context is checked between
+     * stages, a cancelled render throws {@link java.util.concurrent.CancellationException}.
+     */
+    public static void render(int[] pixels, int width, int height, EffectParameters parameters,
+                              RenderContext context) {
+        Planes planes = spare.getAndSet(null);
+        if (planes == null || planes.first.length != pixels.length) {
+            planes = new Planes(pixels.length);
+        }
+        try {
+            context.beginStage(RenderStage.COLOR_BALANCE, width, height);
+            double brightness = applyFilmColorBalance(pixels, width, height, parameters, planes.first);
+            double strength = FilmPipeline.getEffectStrength(brightness);
+            context.completeStage(RenderStage.COLOR_BALANCE);
+
+            context.beginStage(RenderStage.HALATION, width, height);
+            double[] lightnessRange = addHalation(pixels, width, height, strength, parameters, planes, context);
+            context.completeStage(RenderStage.HALATION);
+
+            context.beginStage(RenderStage.TONE_CURVE, width, height);
+            applyToneCurve(pixels, width, height, strength, parameters, lightnessRange, planes.first);
+            context.completeStage(RenderStage.TONE_CURVE);
+
+            // Grain only needs the pixel the bloom leaves, so both run in one pass
+            context.beginStage(RenderStage.BLOOM, width, height);
+            addBloomAndGrain(pixels, width, height, strength, parameters, planes, context);
+            context.completeStage(RenderStage.BLOOM);
+            context.completeStage(RenderStage.GRAIN);
+        } finally {
+            context.abandonStage();
+            spare.set(planes);
+        }
+    }
+
+    // Drops the planes kept for the next render
+    public static void trimMemory() {
+        spare.set(null);
+    }
+
+    // Scales each channel by its film tint and leaves the luminance of the result in luminance.
+    // Returns the mean luminance of the image before, which drives the effect strength.
+    private static double applyFilmColorBalance(int[] pixels, int width, int height, EffectParameters parameters,
+                                                byte[] luminance) {
+        byte[] red = scaleTable(parameters.getRedTint());
+        byte[] green = scaleTable(parameters.getGreenTint());
+        byte[] blue = scaleTable(parameters.getBlueTint());
+        long[] sums = new long[bandCount(height)];
+        forEachBand(height, (band, startRow, endRow) -> {
+            long sum = 0;
+            for (int i = startRow * width; i < endRow * width; i++) {
+                int pixel = pixels[i];
+                int r = (pixel >> 16) & 0xFF;
+                int g = (pixel >> 8) & 0xFF;
+                int b = pixel & 0xFF;
+                sum += gray(r, g, b);
+                r = red[r] & 0xFF;
+                g = green[g] & 0xFF;
+                b = blue[b] & 0xFF;
+                pixels[i] = (pixel & 0xFF000000) | (r << 16) | (g << 8) | b;
+                luminance[i] = (byte) gray(r, g, b);
+            }
+            sums[band] = sum;
+        });
+        long total = 0;
+        for (long sum : sums) {
+            total += sum;
+        }
+        return (double) total / pixels.length;
+    }
+
+    // Adds the red glow around edges and highlights and returns the Lab L range of the result
+    private static double[] addHalation(int[] pixels, int width, int height, double strength,
+                                        EffectParameters parameters, Planes planes, RenderContext context) {
+        byte[] luminance = planes.first;
+        byte[] edges = planes.second;
+        byte[] mask = planes.third;
+
+        // Edges of the lightly blurred luminance, dilated, blended with the bright areas
+        gaussianBlur3x3(luminance, mask, width, height);
+        canny(mask, edges, planes.wide, width, height);
+        dilate(edges, mask, width, height, context.scaleIterations(2));
+        byte[] combined = new byte[4];
+        for (int i = 0; i < combined.length; i++) {
+            float value = ((i & 1) != 0 ? 255 : 0) * EDGE_BLEND + ((i & 2) != 0 ? 255 : 0) * (1.0f - EDGE_BLEND);
+            combined[i] = (byte) Math.rint(value);
+        }
+        forEachBand(height, (band, startRow, endRow) -> {
+            for (int i = startRow * width; i < endRow * width; i++) {
+                int bright = (luminance[i] & 0xFF) > HALATION_THRESHOLD ? 2 : 0;
+                mask[i] = combined[(edges[i] != 0 ? 1 : 0) | bright];
+            }
+        });
+
+        // The glow lands in the edge plane, the luminance is not needed any more
+        int kernelSize = context.scaleKernelSize(parameters.getHalationSize());
+        byte[] glow = edges;
+        blur(mask, glow, luminance, planes.wide, width, height, GlowBlur.sigmaForKernel(kernelSize), kernelSize,
+                context.getBlurMode(RenderStage.HALATION));
+
+        int[][] tint = FilmPipeline.halationTints(minMax(glow, width, height), HALATION_RED, HALATION_WARM, 3);
+        byte[] blend = FilmPipeline.halationBlendTable(parameters.getHalationIntensity() * strength);
+        int bands = bandCount(height);
+        int[] minima = new int[bands];
+        int[] maxima = new int[bands];
+        Arrays.fill(minima, 255);
+        forEachBand(height, (band, startRow, endRow) -> {
+            int min = 255;
+            int max = 0;
+            for (int i = startRow * width; i < endRow * width; i++) {
+                int pixel = pixels[i];
+                int v = glow[i] & 0xFF;
+                int r = blend[(tint[2][v] << 8) | ((pixel >> 16) & 0xFF)] & 0xFF;
+                int g = blend[(tint[1][v] << 8) | ((pixel >> 8) & 0xFF)] & 0xFF;
+                int b = blend[(tint[0][v] << 8) | (pixel & 0xFF)] & 0xFF;
+                pixels[i] = (pixel & 0xFF000000) | (r << 16) | (g << 8) | b;
+                int l = LabConversion.lightness(r, g, b);
+                min = Math.min(min, l);
+                max = Math.max(max, l);
+            }
+            minima[band] = min;
+            maxima[band] = max;
+        });
+        double[] range = {255, 0};
+        for (int band = 0; band < bands; band++) {
+            range[0] = Math.min(range[0], minima[band]);
+            range[1] = Math.max(range[1], maxima[band]);
+        }
+        return range;
+    }
+
+    // Applies the tone curve LUT and leaves the highlights the bloom spreads, where the Lab L of
+    // the result is above the bloom threshold, in highlights
+    private static void applyToneCurve(int[] pixels, int width, int height, double strength,
+                                       EffectParameters parameters, double[] lightnessRange, byte[] highlights) {
+        ToneCurveLut lut = ToneCurveLut.getPortable(strength, parameters, lightnessRange[0], lightnessRange[1]);
+        forEachBand(height, (band, startRow, endRow) -> {
+            int[] out = new int[4];
+            for (int i = startRow * width; i < endRow * width; i++) {
+                int pixel = pixels[i];
+                lut.lookup(pixel & 0xFF, (pixel >> 8) & 0xFF, (pixel >> 16) & 0xFF, out);
+                pixels[i] = (pixel & 0xFF000000) | (out[2] << 16) | (out[1] << 8) | out[0];
+                highlights[i] = out[3] > BLOOM_THRESHOLD ? (byte) 255 : 0;
+            }
+        });
+    }
+
+    private static void addBloomAndGrain(int[] pixels, int width, int height, double strength,
+                                         EffectParameters parameters, Planes planes, RenderContext context) {
+        byte[] highlights = planes.first;
+        byte[] glow = planes.second;
+        dilate(highlights, glow, width, height, context.scaleIterations(2));
+
+        // Detail and spread blurs, or one blur with their variances added for the fast engines
+        int detailKernelSize = context.scaleKernelSize(FilmPipeline.getBloomDetailSize(parameters));
+        int spreadKernelSize = context.scaleKernelSize(parameters.getBloomSize());
+        double detailSigma = GlowBlur.sigmaForKernel(detailKernelSize);
+        double spreadSigma = GlowBlur.sigmaForKernel(spreadKernelSize);
+        GlowBlur.Mode blurMode = context.getBlurMode(RenderStage.BLOOM);
+        if (blurMode == GlowBlur.Mode.EXACT) {
+            gaussianBlur(highlights, planes.third, planes.wide, width, height, detailKernelSize, detailSigma);
+            gaussianBlur(planes.third, glow, planes.wide, width, height, spreadKernelSize, spreadSigma);
+        } else {
+            double sigma = Math.sqrt(detailSigma * detailSigma + spreadSigma * spreadSigma);
+            blur(highlights, glow, planes.third, planes.wide, width, height, sigma, spreadKernelSize, blurMode);
+        }
+        byte[][] bloom = bloomBlendTables(minMax(glow, width, height),
+                strength * parameters.getBloomIntensity() * 2.5);
+
+        GrainTextureCache plates = GrainTextureCache.get(parameters);
+        double grainStrength = strength * parameters.getFilmGrainMultiplier() * 4.0;
+        byte[] grain = FilmPipeline.grainBlendTable(FilmPipeline.getGrainIntensity(
+                context.fullResolutionArea(pixels.length), grainStrength, parameters));
+
+        forEachBand(height, (band, startRow, endRow) -> {
+            byte[] noise = new byte[(endRow - startRow) * width];
+            plates.fill(noise, width, endRow - startRow, context.getFrameX(), context.getFrameY() + startRow);
+            for (int i = startRow * width, n = 0; i < endRow * width; i++, n++) {
+                int pixel = pixels[i];
+                int v = (glow[i] & 0xFF) << 8;
+                int b = bloom[0][v | (pixel & 0xFF)] & 0xFF;
+                int g = bloom[1][v | ((pixel >> 8) & 0xFF)] & 0xFF;
+                int r = bloom[2][v | ((pixel >> 16) & 0xFF)] & 0xFF;
+
+                // More grain in the shadows, less in the highlights, see FilmPipeline.grainBlendTable
+                int luminance = gray(r, g, b);
+                int luminanceBand = luminance <= 60 ? 0 : luminance > 200 ? 2 : 1;
+                int base = (luminanceBand << 16) | ((noise[n] & 0xFF) << 8);
+                b = grain[base | b] & 0xFF;
+                g = grain[base | g] & 0xFF;
+                r = grain[base | r] & 0xFF;
+                pixels[i] = (pixel & 0xFF000000) | (r << 16) | (g << 8) | b;
+            }
+        });
+    }
+
+    // Bloomed blue, green and red values indexed (mask << 8) | pixel, with the float maths of
+    // FilmPipeline.addSoftBloom for a mask normalised over range
+    private static byte[][] bloomBlendTables(double[] range, double amount) {
+        double scale = range[1] - range[0] > 0 ? 1.0 / (range[1] - range[0]) : 0.0;
+        float alpha = (float) scale;
+        float beta = (float) (-range[0] * scale);
+        float weight = (float) amount;
+        byte[][] tables = new byte[BLOOM_TINT.length][256 * 256];
+        for (int m = 0; m < 256; m++) {
+            float unit = m * alpha + beta;
+            for (int c = 0; c < BLOOM_TINT.length; c++) {
+                float tint = unit * BLOOM_TINT[c];
+                for (int p = 0; p < 256; p++) {
+                    float effect = p * tint;
+                    tables[c][(m << 8) | p] = (byte) Math.min(255, Math.max(0, Math.rint(p + effect * weight)));
+                }
+            }
+        }
+        return tables;
+    }
+
+    // Per 8-bit value, the value scaled by factor with saturation
+    private static byte[] scaleTable(float factor) {
+        byte[] table = new byte[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = (byte) Math.min(255, Math.max(0, Math.rint(v * (double) factor)));
+        }
+        return table;
+    }
+
+    // Luminance with the fixed point weights of OpenCV's BGR2GRAY
+    private static int gray(int r, int g, int b) {
+        return (b * 3735 + g * 19235 + r * 9798 + (1 << 14)) >> 15;
+    }
+
+    private static double[] minMax(byte[] plane, int width, int height) {
+        int bands = bandCount(height);
+        int[] minima = new int[bands];
+        int[] maxima = new int[bands];
+        Arrays.fill(minima, 255);
+        forEachBand(height, (band, startRow, endRow) -> {
+            int min = 255;
+            int max = 0;
+            for (int i = startRow * width; i < endRow * width; i++) {
+                int v = plane[i] & 0xFF;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            minima[band] = min;
+            maxima[band] = max;
+        });
+        double[] range = {255, 0};
+        for (int band = 0; band < bands; band++) {
+            range[0] = Math.min(range[0], minima[band]);
+            range[1] = Math.max(range[1], maxima[band]);
+        }
+        return range;
+    }
+
+    // Blurs src into dst like GlowBlur.blurSigma, spare is overwritten by the box engine
+    private static void blur(byte[] src, byte[] dst, byte[] spare, short[] scratch, int width, int height,
+                             double sigma, int kernelSize, GlowBlur.Mode mode) {
+        if (mode == GlowBlur.Mode.EXACT) {
+            gaussianBlur(src, dst, scratch, width, height, kernelSize, sigma);
+            return;
+        }
+        int[] widths = GlowBlur.boxWidths(sigma);
+        boxBlur(src, dst, scratch, width, height, widths[0]);
+        boxBlur(dst, spare, scratch, width, height, widths[1]);
+        boxBlur(spare, dst, scratch, width, height, widths[2]);
+    }
+
+    // GaussianBlur with a 3x3 kernel and default sigma, the [1 2 1] kernel in both directions
+    private static void gaussianBlur3x3(byte[] src, byte[] dst, int width, int height) {
+        int[] columns = reflectedIndices(width, 1);
+        int[] rows = reflectedIndices(height, 1);
+        forEachBand(height, (band, startRow, endRow) -> {
+            for (int y = startRow; y < endRow; y++) {
+                int above = rows[y] * width;
+                int row = rows[y + 1] * width;
+                int below = rows[y + 2] * width;
+                for (int x = 0; x < width; x++) {
+                    int left = columns[x];
+                    int centre = columns[x + 1];
+                    int right = columns[x + 2];
+                    int sum = (src[above + left] & 0xFF) + 2 * (src[above + centre] & 0xFF) + (src[above + right] & 0xFF)
+                            + 2 * ((src[row + left] & 0xFF) + 2 * (src[row + centre] & 0xFF) + (src[row + right] & 0xFF))
+                            + (src[below + left] & 0xFF) + 2 * (src[below + centre] & 0xFF) + (src[below + right] & 0xFF);
+                    dst[y * width + x] = (byte) ((sum + 8) >> 4);
+                }
+            }
+        });
+    }
+
+    // Separable Gaussian in 14 bit fixed point, reflecting at the border like GaussianBlur. The
+    // horizontal pass keeps 8 fractional bits in scratch.
+    private static void gaussianBlur(byte[] src, byte[] dst, short[] scratch, int width, int height,
+                                     int kernelSize, double sigma) {
+        int radius = kernelSize / 2;
+        int[] weights = new int[2 * radius + 1];
+        double[] exact = new double[weights.length];
+        double total = 0;
+        for (int i = 0; i < exact.length; i++) {
+            int d = i - radius;
+            exact[i] = Math.exp(-d * d / (2 * sigma * sigma));
+            total += exact[i];
+        }
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (int) Math.round(exact[i] / total * (1 << 14));
+            sum += weights[i];
+        }
+        weights[radius] += (1 << 14) - sum;
+
+        int[] columns = reflectedIndices(width, radius);
+        int[] rows = reflectedIndices(height, radius);
+        forEachBand(height, (band, startRow, endRow) -> {
+            for (int y = startRow; y < endRow; y++) {
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    int value = 0;
+                    for (int k = 0; k < weights.length; k++) {
+                        value += weights[k] * (src[row + columns[x + k]] & 0xFF);
+                    }
+                    scratch[row + x] = (short) ((value + (1 << 5)) >> 6);
+                }
+            }
+        });
+        forEachBand(height, (band, startRow, endRow) -> {
+            int[] values = new int[width];
+            for (int y = startRow; y < endRow; y++) {
+                Arrays.fill(values, 1 << 21);
+                for (int k = 0; k < weights.length; k++) {
+                    int weight = weights[k];
+                    int row = rows[y + k] * width;
+                    for (int x = 0; x < width; x++) {
+                        values[x] += weight * (scratch[row + x] & 0xFFFF);
+                    }
+                }
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    dst[row + x] = (byte) (values[x] >> 22);
+                }
+            }
+        });
+    }
+
+    // Imgproc.blur with a size x size box, by running sums, reflecting at the border. The
+    // horizontal pass keeps 8 fractional bits in scratch, divisions are multiplications by 32 bit
+    // fixed point reciprocals.
+    private static void boxBlur(byte[] src, byte[] dst, short[] scratch, int width, int height, int size) {
+        int radius = size / 2;
+        int[] columns = reflectedIndices(width, radius);
+        int[] rows = reflectedIndices(height, radius);
+        long rowScale = Math.round((double) (1L << 32) * 256 / size);
+        long columnScale = Math.round((double) (1L << 32) / (size * 256));
+        long half = 1L << 31;
+        forEachBand(height, (band, startRow, endRow) -> {
+            for (int y = startRow; y < endRow; y++) {
+                int row = y * width;
+                int sum = 0;
+                for (int k = 0; k < size; k++) {
+                    sum += src[row + columns[k]] & 0xFF;
+                }
+                for (int x = 0; x < width; x++) {
+                    scratch[row + x] = (short) ((sum * rowScale + half) >> 32);
+                    if (x + 1 < width) {
+                        sum += (src[row + columns[x + size]] & 0xFF) - (src[row + columns[x]] & 0xFF);
+                    }
+                }
+            }
+        });
+        forEachBand(height, (band, startRow, endRow) -> {
+            int[] sums = new int[width];
+            for (int k = 0; k < size; k++) {
+                int row = rows[startRow + k] * width;
+                for (int x = 0; x < width; x++) {
+                    sums[x] += scratch[row + x] & 0xFFFF;
+                }
+            }
+            for (int y = startRow; y < endRow; y++) {
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    dst[row + x] = (byte) ((sums[x] * columnScale + half) >> 32);
+                }
+                if (y + 1 < endRow) {
+                    int entering = rows[y + size] * width;
+                    int leaving = rows[y] * width;
+                    for (int x = 0; x < width; x++) {
+                        sums[x] += (scratch[entering + x] & 0xFFFF) - (scratch[leaving + x] & 0xFFFF);
+                    }
+                }
+            }
+        });
+    }
+
+    // Imgproc.dilate with the 3x3 kernel run iterations times, which is a max over a square of
+    // 2 * iterations + 1 pixels clipped to the image. The result replaces plane.
+    private static void dilate(byte[] plane, byte[] scratch, int width, int height, int iterations) {
+        forEachBand(height, (band, startRow, endRow) -> {
+            for (int y = startRow; y < endRow; y++) {
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    int first = Math.max(0, x - iterations);
+                    int last = Math.min(width - 1, x + iterations);
+                    int max = 0;
+                    for (int i = row + first; i <= row + last; i++) {
+                        max = Math.max(max, plane[i] & 0xFF);
+                    }
+                    scratch[row + x] = (byte) max;
+                }
+            }
+        });
+        forEachBand(height, (band, startRow, endRow) -> {
+            int[] max = new int[width];
+            for (int y = startRow; y < endRow; y++) {
+                Arrays.fill(max, 0);
+                for (int k = Math.max(0, y - iterations); k <= Math.min(height - 1, y + iterations); k++) {
+                    int row = k * width;
+                    for (int x = 0; x < width; x++) {
+                        max[x] = Math.max(max[x], scratch[row + x] & 0xFF);
+                    }
+                }
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    plane[row + x] = (byte) max[x];
+                }
+            }
+        });
+    }
+
+    // Imgproc.Canny with the 3x3 Sobel and the L1 gradient: 255 on edges, 0 elsewhere
+    private static void canny(byte[] src, byte[] edges, short[] magnitude, int width, int height) {
+        forEachBand(height, (band, startRow, endRow) -> {
+            for (int y = startRow; y < endRow; y++) {
+                for (int x = 0; x < width; x++) {
+                    magnitude[y * width + x] = (short) (Math.abs(sobelX(src, width, height, x, y))
+                            + Math.abs(sobelY(src, width, height, x, y)));
+                }
+            }
+        });
+
+        // Non-maximum suppression across the gradient, in the fixed point sectors of OpenCV
+        forEachBand(height, (band, startRow, endRow) -> {
+            for (int y = startRow; y < endRow; y++) {
+                for (int x = 0; x < width; x++) {
+                    int m = magnitude[y * width + x];
+                    byte type = NONE;
+                    if (m > EDGE_THRESHOLD_LOW) {
+                        int dx = sobelX(src, width, height, x, y);
+                        int dy = sobelY(src, width, height, x, y);
+                        int ax = Math.abs(dx);
+                        int ay = Math.abs(dy) << CANNY_SHIFT;
+                        int tg22x = ax * TG22;
+                        boolean maximum;
+                        if (ay < tg22x) {
+                            maximum = m > magnitudeAt(magnitude, width, height, x - 1, y)
+                                    && m >= magnitudeAt(magnitude, width, height, x + 1, y);
+                        } else {
+                            int tg67x = tg22x + (ax << (CANNY_SHIFT + 1));
+                            if (ay > tg67x) {
+                                maximum = m > magnitudeAt(magnitude, width, height, x, y - 1)
+                                        && m >= magnitudeAt(magnitude, width, height, x, y + 1);
+                            } else {
+                                int s = (dx ^ dy) < 0 ? -1 : 1;
+                                maximum = m > magnitudeAt(magnitude, width, height, x - s, y - 1)
+                                        && m > magnitudeAt(magnitude, width, height, x + s, y + 1);
+                            }
+                        }
+                        if (maximum) {
+                            type = m > EDGE_THRESHOLD_HIGH ? STRONG : WEAK;
+                        }
+                    }
+                    edges[y * width + x] = type;
+                }
+            }
+        });
+
+        // Hysteresis: weak pixels connected to a strong one are edges too
+        int[] stack = new int[1024];
+        for (int start = 0; start < edges.length; start++) {
+            if (edges[start] != STRONG) {
+                continue;
+            }
+            int top = 0;
+            stack[top++] = start;
+            while (top > 0) {
+                int i = stack[--top];
+                if (edges[i] == TRACED) {
+                    continue;
+                }
+                edges[i] = TRACED;
+                int x = i % width;
+                int y = i / width;
+                for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+                    for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+                        int neighbour = ny * width + nx;
+                        if (edges[neighbour] == WEAK || edges[neighbour] == STRONG) {
+                            edges[neighbour] = STRONG;
+                            if (top == stack.length) {
+                                stack = Arrays.copyOf(stack, stack.length * 2);
+                            }
+                            stack[top++] = neighbour;
+                        }
+                    }
+                }
+            }
+        }
+        forEachBand(height, (band, startRow, endRow) -> {
+            for (int i = startRow * width; i < endRow * width; i++) {
+                edges[i] = edges[i] == TRACED ? (byte) 255 : 0;
+            }
+        });
+    }
+
+    // 3x3 Sobel derivatives, replicating the border like Canny does
+    private static int sobelX(byte[] src, int width, int height, int x, int y) {
+        int left = Math.max(0, x - 1);
+        int right = Math.min(width - 1, x + 1);
+        int above = Math.max(0, y - 1) * width;
+        int row = y * width;
+        int below = Math.min(height - 1, y + 1) * width;
+        return (src[above + right] & 0xFF) + 2 * (src[row + right] & 0xFF) + (src[below + right] & 0xFF)
+                - (src[above + left] & 0xFF) - 2 * (src[row + left] & 0xFF) - (src[below + left] & 0xFF);
+    }
+
+    private static int sobelY(byte[] src, int width, int height, int x, int y) {
+        int left = Math.max(0, x - 1);
+        int right = Math.min(width - 1, x + 1);
+        int above = Math.max(0, y - 1) * width;
+        int below = Math.min(height - 1, y + 1) * width;
+        return (src[below + left] & 0xFF) + 2 * (src[below + x] & 0xFF) + (src[below + right] & 0xFF)
+                - (src[above + left] & 0xFF) - 2 * (src[above + x] & 0xFF) - (src[above + right] & 0xFF);
+    }
+
+    // Gradient magnitude, zero outside the image
+    private static int magnitudeAt(short[] magnitude, int width, int height, int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return 0;
+        }
+        return magnitude[y * width + x];
+    }
+
+    // Source index of each position from -radius to length + radius - 1, reflected at the border
+    // without repeating the edge pixel, like BORDER_REFLECT_101. Position p is at index p + radius.
+    private static int[] reflectedIndices(int length, int radius) {
+        int[] indices = new int[length + 2 * radius];
+        for (int i = 0; i < indices.length; i++) {
+            int p = i - radius;
+            if (length == 1) {
+                p = 0;
+            }
+            while (p < 0 || p >= length) {
+                p = p < 0 ? -p : 2 * length - 2 - p;
+            }
+            indices[i] = p;
+        }
+        return indices;
+    }
+
+    // A few bands per core, so uneven bands still keep every core busy
+    private static int bandCount(int height) {
+        return Math.max(1, Math.min(height, ForkJoinPool.getCommonPoolParallelism() * 4));
+    }
+
+    // Runs task on each band of rows of an image of the given height, on the common fork-join pool
+    private static void forEachBand(int height, BandTask task) {
+        int bands = bandCount(height);
+        int bandRows = (height + bands - 1) / bands;
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int startRow = band * bandRows;
+            int endRow = Math.min(height, startRow + bandRows);
+            if (startRow < endRow) {
+                task.run(band, startRow, endRow);
+            }
+        });
+    }
+}
@@ -0,0 +1,105 @@
+package com.lapentad.dustycv;
+
+/**
+ * 8-bit sRGB to CIE Lab and back in plain Java, with the D65 white point and the 8-bit encoding of
+ * OpenCV's COLOR_BGR2Lab: L scaled to 0-255, a and b offset by 128. OpenCV computes the same
+ * formulas in fixed point, results agree within a few levels.
+ */
+final class LabConversion {
+    private static final double WHITE_X = 0.950456;
+    private static final double WHITE_Z = 1.088754;
+    private static final double EPSILON = 0.008856;
+    private static final double KAPPA = 903.3;
+    // Fixed point scale of the luminance in the lightness lookup
+    private static final int Y_SCALE = 1 << 16;
+
+    // Linear light of each 8-bit sRGB value
+    private static final double[] LINEAR = new double[256];
+    // Contribution of each 8-bit R, G and B value to the luminance, in units of 1 / Y_SCALE
+    private static final int[] Y_RED = new int[256];
+    private static final int[] Y_GREEN = new int[256];
+    private static final int[] Y_BLUE = new int[256];
+    // 8-bit L per fixed point luminance
+    private static final byte[] LIGHTNESS = new byte[Y_SCALE + 1];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            double c = v / 255.0;
+            LINEAR[v] = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+            Y_RED[v] = (int) Math.round(0.212671 * LINEAR[v] * Y_SCALE);
+            Y_GREEN[v] = (int) Math.round(0.715160 * LINEAR[v] * Y_SCALE);
+            Y_BLUE[v] = (int) Math.round(0.072169 * LINEAR[v] * Y_SCALE);
+        }
+        for (int y = 0; y <= Y_SCALE; y++) {
+            LIGHTNESS[y] = (byte) clamp(lightnessOf((double) y / Y_SCALE) * 255.0 / 100.0);
+        }
+    }
+
+    private LabConversion() {
+    }
+
+    // 8-bit L of an 8-bit sRGB colour, by table lookups only
+    static int lightness(int r, int g, int b) {
+        int y = Y_RED[r] + Y_GREEN[g] + Y_BLUE[b];
+        return LIGHTNESS[Math.min(Y_SCALE, y)] & 0xFF;
+    }
+
+    // Converts packed B, G, R triplets to L, a, b triplets in place, like COLOR_BGR2Lab
+    static void bgrToLab(byte[] triplets) {
+        for (int i = 0; i < triplets.length; i += 3) {
+            double b = LINEAR[triplets[i] & 0xFF];
+            double g = LINEAR[triplets[i + 1] & 0xFF];
+            double r = LINEAR[triplets[i + 2] & 0xFF];
+            double x = (0.412453 * r + 0.357580 * g + 0.180423 * b) / WHITE_X;
+            double y = 0.212671 * r + 0.715160 * g + 0.072169 * b;
+            double z = (0.019334 * r + 0.119193 * g + 0.950227 * b) / WHITE_Z;
+            double fx = f(x);
+            double fy = f(y);
+            double fz = f(z);
+            triplets[i] = (byte) clamp(lightnessOf(y) * 255.0 / 100.0);
+            triplets[i + 1] = (byte) clamp(500.0 * (fx - fy) + 128.0);
+            triplets[i + 2] = (byte) clamp(200.0 * (fy - fz) + 128.0);
+        }
+    }
+
+    // Converts packed L, a, b triplets to B, G, R triplets in place, like COLOR_Lab2BGR
+    static void labToBgr(byte[] triplets) {
+        for (int i = 0; i < triplets.length; i += 3) {
+            double l = (triplets[i] & 0xFF) * 100.0 / 255.0;
+            double a = (triplets[i + 1] & 0xFF) - 128.0;
+            double bb = (triplets[i + 2] & 0xFF) - 128.0;
+            double fy = (l + 16.0) / 116.0;
+            double y = l > KAPPA * EPSILON ? fy * fy * fy : l / KAPPA;
+            double x = inverseF(fy + a / 500.0) * WHITE_X;
+            double z = inverseF(fy - bb / 200.0) * WHITE_Z;
+            double r = 3.240479 * x - 1.53715 * y - 0.498535 * z;
+            double g = -0.969256 * x + 1.875991 * y + 0.041556 * z;
+            double b = 0.055648 * x - 0.204043 * y + 1.057311 * z;
+            triplets[i] = (byte) clamp(gamma(b) * 255.0);
+            triplets[i + 1] = (byte) clamp(gamma(g) * 255.0);
+            triplets[i + 2] = (byte) clamp(gamma(r) * 255.0);
+        }
+    }
+
+    private static double lightnessOf(double y) {
+        return y > EPSILON ? 116.0 * Math.cbrt(y) - 16.0 : KAPPA * y;
+    }
+
+    private static double f(double t) {
+        return t > EPSILON ? Math.cbrt(t) : 7.787 * t + 16.0 / 116.0;
+    }
+
+    private static double inverseF(double f) {
+        double cube = f * f * f;
+        return cube > EPSILON ? cube : (f - 16.0 / 116.0) / 7.787;
+    }
+
+    private static double gamma(double linear) {
+        double c = Math.min(1.0, Math.max(0.0, linear));
+        return c <= 0.0031308 ? 12.92 * c : 1.055 * Math.pow(c, 1.0 / 2.4) - 0.055;
+    }
+
+    private static int clamp(double v) {
+        return (int) Math.min(255, Math.max(0, Math.round(v)));
+    }
+}
@@ -1,21 +1,37 @@
 package com.lapentad.dustycv;
+import android.content.ClipData;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.Settings;
 import android.util.Log;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.ImageView;
+import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.FileProvider;
+import androidx.work.Data;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+
+import com.google.android.material.slider.Slider;
 
 import org.opencv.android.OpenCVLoader;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
@@ -24,9 +40,6 @@ import android.graphics.Matrix;
 
 import android.view.View;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
@@ -35,16 +48,42 @@ import androidx.annotation.NonNull;
 
 public class MainActivity extends AppCompatActivity {
 
+    // The picked image, decoded again at full resolution for export
+    private SourceImage sourceImage;
+    private ImageLoader imageLoader;
+    private RegionExporter regionExporter;
+    private ShareCache shareCache;
+    // Batch jobs this activity has seen running, their results are shown once they finish
+    private final Set<UUID> runningBatches = new HashSet<>();
+    private boolean showingBatchProgress = false;
+    private final ExportSettings exportSettings = new ExportSettings();
+    // sourceImage decoded at the size editing needs, subsampled when it is large
     private Bitmap originalBitmap;
+    // Downscaled copy of originalBitmap sized to the view, edits are previewed on it
+    private Bitmap previewBitmap;
     private Bitmap processedBitmap;
+    // Preview renders alternate between two bitmaps instead of allocating one each time
+    private final RenderTarget renderTarget = new RenderTarget();
+    // Previews already rendered, going back to one of them shows it at once
+    private RenderCache renderCache;
+    // Key of the render in front, it goes into the render cache once another render replaces it
+    private RenderCache.Key frontKey;
     private ImageView imageView;
     private final Matrix matrix = new Matrix();
     private CropOverlayView cropOverlayView;
     private boolean isCropping = false;
     private com.google.android.material.floatingactionbutton.FloatingActionButton btnResize;
     private EffectParameters effectParameters = new EffectParameters();
+    private final RenderService renderService = new RenderService();
+    private com.google.android.material.progressindicator.LinearProgressIndicator renderProgress;
+    // Stage timings of the last render, toggled by a long press on the settings button
+    private TextView metricsHud;
 
     private static final int PERMISSION_REQUEST_CODE = 100;
+    private static final int NOTIFICATION_REQUEST_CODE = 101;
+    // Previews fall back to the Java pipeline when the native library is missing, exports and
+    // batches need it and are turned down
+    private static boolean openCvLoaded = false;
 
     static {
         try {
@@ -52,6 +91,7 @@ public class MainActivity extends AppCompatActivity {
             if (!OpenCVLoader.initLocal()) {
                 Log.e("OpenCV", "OpenCV initialization failed");
             } else {
+                openCvLoaded = true;
                 Log.i("OpenCV", "OpenCV loaded successfully.");
             }
         } catch (Exception e) {
@@ -63,23 +103,26 @@ public class MainActivity extends AppCompatActivity {
             registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
                 if (result.getResultCode() == RESULT_OK && result.getData() != null) {
                     Uri uri = result.getData().getData();
-                    try {
-                            // Use ImageDecoder for API 28+
-                        assert uri != null;
-                        originalBitmap = android.graphics.ImageDecoder.decodeBitmap(
-                                android.graphics.ImageDecoder.createSource(getContentResolver(), uri)
-                            );
-                            if (originalBitmap.getConfig() != Bitmap.Config.ARGB_8888) {
-                            Bitmap temp = originalBitmap.copy(Bitmap.Config.ARGB_8888, true);
-                            originalBitmap.recycle();
-                            originalBitmap = temp;
+                    if (uri != null) {
+                        loadImage(new SourceImage(uri));
+                    }
+                }
+            });
+
+    private final ActivityResultLauncher<Intent> batchPickerLauncher =
+            registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
+                if (result.getResultCode() == RESULT_OK && result.getData() != null) {
+                    List<Uri> uris = new ArrayList<>();
+                    ClipData clipData = result.getData().getClipData();
+                    if (clipData != null) {
+                        for (int i = 0; i < clipData.getItemCount(); i++) {
+                            uris.add(clipData.getItemAt(i).getUri());
                         }
-                        
-                        imageView.setImageBitmap(originalBitmap);
-                        processedBitmap = null; // reset processed if user picks new image
-                    } catch (IOException e) {
-                        Log.e("MainActivity", "Error loading image: " + e.getMessage());
-                        Toast.makeText(this, "Error loading image", Toast.LENGTH_SHORT).show();
+                    } else if (result.getData().getData() != null) {
+                        uris.add(result.getData().getData());
+                    }
+                    if (!uris.isEmpty()) {
+                        startBatch(uris);
                     }
                 }
             });
@@ -96,10 +139,49 @@ public class MainActivity extends AppCompatActivity {
         }
     );
 
+    // Decodes a picked image in the background, the editor switches to it once it is ready
+    private void loadImage(SourceImage source) {
+        renderService.submitLoad(() -> {
+            Bitmap bitmap = imageLoader.load(source);
+            // Wide gamut and high bit depth images decode to other configs
+            if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                Bitmap temp = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+                bitmap.recycle();
+                bitmap = temp;
+            }
+            return bitmap;
+        }, new RenderService.LoadCallback() {
+            @Override
+            public void onLoaded(Bitmap bitmap) {
+                originalBitmap = bitmap;
+                sourceImage = source;
+                renderService.cancel();
+                previewBitmap = createPreviewBitmap(originalBitmap);
+                imageView.setImageBitmap(originalBitmap);
+                processedBitmap = null; // reset processed if user picks new image
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                Log.e("MainActivity", "Error loading image: " + e.getMessage());
+                Toast.makeText(MainActivity.this, "Error loading image", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        imageLoader = new ImageLoader(this);
+        regionExporter = new RegionExporter(this);
+        shareCache = new ShareCache(this);
+        renderCache = new RenderCache(this);
+        if (!openCvLoaded) {
+            renderService.setBackend(FilmBackend.JAVA_ONLY);
+        }
+        WorkManager.getInstance(this).getWorkInfosForUniqueWorkLiveData(BatchWorker.UNIQUE_NAME)
+                .observe(this, this::showBatchProgress);
 
         // Check and request permissions immediately
         if (hasNoPermissions()) {
@@ -113,6 +195,8 @@ public class MainActivity extends AppCompatActivity {
         btnResize = findViewById(R.id.btnResize);
         imageView = findViewById(R.id.touchImageView);
         cropOverlayView = findViewById(R.id.cropOverlayView);
+        renderProgress = findViewById(R.id.renderProgress);
+        metricsHud = findViewById(R.id.metricsHud);
 
         btnChoose.setOnClickListener(v -> {
             if (hasNoPermissions()) {
@@ -121,38 +205,61 @@ public class MainActivity extends AppCompatActivity {
                 chooseImage();
             }
         });
+        btnChoose.setOnLongClickListener(v -> {
+            chooseBatch();
+            return true;
+        });
         btnProcess.setOnClickListener(v -> {
             if (originalBitmap != null) {
-                processedBitmap = applyFilmLook(originalBitmap);
-                imageView.setImageBitmap(processedBitmap);
-                // Reset scale and center the image
-                matrix.reset();
-                // Calculate center position
-                float dx = (imageView.getWidth() - processedBitmap.getWidth()) / 2f;
-                float dy = (imageView.getHeight() - processedBitmap.getHeight()) / 2f;
-                matrix.postTranslate(dx, dy);
-                imageView.setImageMatrix(matrix);
+                renderPreview(result -> {
+                    processedBitmap = result;
+                    imageView.setImageBitmap(processedBitmap);
+                    // Reset scale and center the image
+                    matrix.reset();
+                    // Calculate center position
+                    float dx = (imageView.getWidth() - processedBitmap.getWidth()) / 2f;
+                    float dy = (imageView.getHeight() - processedBitmap.getHeight()) / 2f;
+                    matrix.postTranslate(dx, dy);
+                    imageView.setImageMatrix(matrix);
+                });
             }
         });
         btnShare.setOnClickListener(v -> {
             // Share the current image: processed if available, otherwise original
-            Bitmap toShare = processedBitmap != null ? processedBitmap : originalBitmap;
-            if (toShare != null) {
-                shareImage(toShare);
+            if (processedBitmap != null) {
+                // The screen shows a preview, render the full resolution image for export
+                exportAndShare(effectParameters);
+            } else if (originalBitmap != null) {
+                exportAndShare(null);
             } else {
                 Toast.makeText(MainActivity.this, "Please select or process an image first", Toast.LENGTH_SHORT).show();
             }
         });
+        btnShare.setOnLongClickListener(v -> {
+            chooseExportSettings();
+            return true;
+        });
         btnSettings.setOnClickListener(v -> {
-            EffectsSettingsDialog dialog = EffectsSettingsDialog.newInstance(effectParameters, parameters -> {
-                effectParameters = parameters;
-                if (originalBitmap != null) {
-                    processedBitmap = applyFilmLook(originalBitmap);
-                    imageView.setImageBitmap(processedBitmap);
+            EffectsSettingsDialog dialog = EffectsSettingsDialog.newInstance(effectParameters,
+                    new EffectsSettingsDialog.OnEffectsAppliedListener() {
+                @Override
+                public void onEffectsApplied(EffectParameters parameters) {
+                    effectParameters = parameters;
+                    showPreview();
+                }
+
+                @Override
+                public void onEffectsChanged(EffectParameters parameters) {
+                    effectParameters = parameters;
+                    showPreview();
                 }
             });
             dialog.show(getSupportFragmentManager(), "effects_settings");
         });
+        btnSettings.setOnLongClickListener(v -> {
+            toggleMetricsHud();
+            return true;
+        });
         btnResize.setOnClickListener(v -> {
             if (originalBitmap != null) {
                 if (!isCropping) {
@@ -177,7 +284,117 @@ public class MainActivity extends AppCompatActivity {
         imagePickerLauncher.launch(Intent.createChooser(intent, "Select Picture"));
     }
 
+    // Picks many images to apply the current film look to, see startBatch
+    private void chooseBatch() {
+        if (!openCvLoaded) {
+            Toast.makeText(this, "Batch export is unavailable without OpenCV", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (hasNoPermissions()) {
+            requestPermissions();
+            return;
+        }
+        if (ContextCompat.checkSelfPermission(this, android.Manifest.permission.POST_NOTIFICATIONS)
+                != PackageManager.PERMISSION_GRANTED) {
+            // Only for the progress notification, batches run without it
+            ActivityCompat.requestPermissions(this,
+                    new String[]{android.Manifest.permission.POST_NOTIFICATIONS}, NOTIFICATION_REQUEST_CODE);
+        }
+
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("image/*");
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        batchPickerLauncher.launch(intent);
+    }
+
+    private void startBatch(List<Uri> uris) {
+        // The batch may resume after the process is killed, so it keeps its own read access
+        for (Uri uri : uris) {
+            try {
+                getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                Log.w("MainActivity", "No persistable permission for " + uri);
+            }
+        }
+        try {
+            BatchWorker.enqueue(this, uris, effectParameters, exportSettings);
+        } catch (IOException e) {
+            Log.e("MainActivity", "Error starting batch: " + e.getMessage());
+            Toast.makeText(this, "Error starting batch", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void showBatchProgress(List<WorkInfo> workInfos) {
+        boolean running = false;
+        for (WorkInfo info : workInfos) {
+            if (info.getState() == WorkInfo.State.RUNNING) {
+                running = true;
+                runningBatches.add(info.getId());
+                Data progress = info.getProgress();
+                int max = progress.getInt(BatchWorker.KEY_MAX, 0);
+                if (max > 0) {
+                    renderProgress.setMax(max);
+                    renderProgress.setProgressCompat(progress.getInt(BatchWorker.KEY_PROGRESS, 0), true);
+                    renderProgress.setVisibility(View.VISIBLE);
+                }
+            } else if (info.getState() == WorkInfo.State.SUCCEEDED && runningBatches.remove(info.getId())) {
+                Data output = info.getOutputData();
+                String message = String.format(Locale.getDefault(), "%d exported to Pictures/DustyCV, %d failed, %.1f images/min",
+                        output.getInt(BatchWorker.KEY_SUCCEEDED, 0), output.getInt(BatchWorker.KEY_FAILED, 0),
+                        output.getDouble(BatchWorker.KEY_IMAGES_PER_MINUTE, 0));
+                Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+            } else if (info.getState().isFinished()) {
+                runningBatches.remove(info.getId());
+            }
+        }
+        if (!running && showingBatchProgress) {
+            renderProgress.setVisibility(View.GONE);
+        }
+        showingBatchProgress = running;
+    }
+
+    @Override
+    protected void onDestroy() {
+        renderService.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        renderCache.trimMemory(level);
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // Pooled render buffers can run to hundreds of megabytes for a full resolution share
+            renderService.trimMemory();
+            renderTarget.clear();
+        }
+    }
+
+    private void toggleMetricsHud() {
+        if (metricsHud.getVisibility() == View.VISIBLE) {
+            renderService.setMetricsListener(null);
+            metricsHud.setVisibility(View.GONE);
+            return;
+        }
+        metricsHud.setText(R.string.metrics_hud_waiting);
+        metricsHud.setVisibility(View.VISIBLE);
+        renderService.setMetricsListener(metrics -> {
+            String text = metrics.format();
+            runOnUiThread(() -> metricsHud.setText(text));
+        });
+    }
+
+    // Previews and exports share the progress bar, it stays up while either is running
+    private void hideRenderProgress() {
+        if (!renderService.isRendering()) {
+            renderProgress.setVisibility(View.GONE);
+        }
+    }
+
     private void startCropping() {
+        renderService.cancel();
+        hideRenderProgress();
         isCropping = true;
         cropOverlayView.setVisibility(View.VISIBLE);
         cropOverlayView.setImageBitmap(originalBitmap);
@@ -187,7 +404,9 @@ public class MainActivity extends AppCompatActivity {
     private void applyCrop() {
         isCropping = false;
         cropOverlayView.setVisibility(View.GONE);
+        sourceImage.crop(cropOverlayView.getCropRegion(), originalBitmap.getWidth(), originalBitmap.getHeight());
         originalBitmap = cropOverlayView.getCroppedBitmap();
+        previewBitmap = createPreviewBitmap(originalBitmap);
         imageView.setImageBitmap(originalBitmap);
         
         // Reset and center the image
@@ -201,30 +420,220 @@ public class MainActivity extends AppCompatActivity {
         btnResize.setImageResource(android.R.drawable.ic_menu_crop);
     }
 
-    private Bitmap applyFilmLook(Bitmap bitmap) {
-        return ImageProcessor.applyFilmLook(bitmap, effectParameters);
+    private interface OnRenderedListener {
+        void onRendered(Bitmap result);
     }
 
-    private void shareImage(Bitmap bitmap) {
-        try {
-            // Create a file in the app's cache directory
-            File cachePath = new File(getCacheDir(), "images");
-            if (!cachePath.exists() && !cachePath.mkdirs()) {
-                Log.e("MainActivity", "Failed to create cache directory");
-                Toast.makeText(this, "Failed to create directory", Toast.LENGTH_SHORT).show();
+    private void showPreview() {
+        if (originalBitmap != null) {
+            renderPreview(result -> {
+                processedBitmap = result;
+                imageView.setImageBitmap(processedBitmap);
+            });
+        }
+    }
+
+    private void renderPreview(OnRenderedListener listener) {
+        RenderCache.Key key = RenderCache.key(sourceImage, previewBitmap, effectParameters);
+        Bitmap cached = renderCache.get(key);
+        if (cached != null) {
+            // A render still running for other parameters must not replace it
+            renderService.cancel();
+            hideRenderProgress();
+            listener.onRendered(showRender(RenderCache.copy(cached, renderTarget.getBack()), key));
+            return;
+        }
+
+        SourceImage source = sourceImage;
+        Bitmap preview = previewBitmap;
+        EffectParameters parameters = new EffectParameters(effectParameters);
+        applyFilmLook(previewBitmap, renderScale(previewBitmap), renderTarget.getBack(), result -> {
+            // A failed render hands back its input, which must never become a buffer to render into
+            if (result == preview) {
+                listener.onRendered(result);
                 return;
             }
+            listener.onRendered(showRender(result, RenderCache.key(source, preview, parameters)));
+        });
+    }
+
+    // Makes a finished render the front buffer and returns it. The render it replaces goes into the
+    // render cache as it is, and the next render writes into a bitmap the cache dropped.
+    private Bitmap showRender(Bitmap rendered, RenderCache.Key key) {
+        Bitmap previous = renderTarget.getFront();
+        if (previous != null && previous != rendered && frontKey != null) {
+            renderTarget.replace(rendered, renderCache.keep(frontKey, previous));
+        } else {
+            renderTarget.swap(rendered);
+        }
+        frontKey = key;
+        return rendered;
+    }
+
+    // Size of a bitmap of the image relative to its full resolution, see RenderContext
+    private double renderScale(Bitmap bitmap) {
+        return (double) bitmap.getWidth() / sourceImage.getWidth();
+    }
+
+    private Bitmap createPreviewBitmap(Bitmap bitmap) {
+        // The view fills the screen, there is no point previewing more pixels than it can show
+        int maxEdge = Math.max(imageView.getWidth(), imageView.getHeight());
+        if (maxEdge == 0) {
+            maxEdge = Math.max(getResources().getDisplayMetrics().widthPixels,
+                    getResources().getDisplayMetrics().heightPixels);
+        }
+        int longEdge = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longEdge <= maxEdge) {
+            return bitmap;
+        }
+        float scale = (float) maxEdge / longEdge;
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        return Bitmap.createScaledBitmap(bitmap, width, height, true);
+    }
+
+    // Renders in the background, a newer request supersedes any render still in flight
+    private void applyFilmLook(Bitmap bitmap, double renderScale, Bitmap output, OnRenderedListener listener) {
+        renderProgress.setProgressCompat(0, false);
+        renderProgress.setVisibility(View.VISIBLE);
+        renderService.submit(bitmap, effectParameters, renderScale, output, new RenderService.Callback() {
+            @Override
+            public void onProgress(RenderStage stage, int completed, int total) {
+                renderProgress.setMax(total);
+                renderProgress.setProgressCompat(completed, true);
+            }
+
+            @Override
+            public void onResult(Bitmap result) {
+                hideRenderProgress();
+                if (result != null) {
+                    listener.onRendered(result);
+                }
+            }
+
+            @Override
+            public void onFailed(Throwable error) {
+                hideRenderProgress();
+                Toast.makeText(MainActivity.this, "Failed to render image", Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onCancelled() {
+                hideRenderProgress();
+            }
+        });
+    }
+
+    private void chooseExportSettings() {
+        View view = getLayoutInflater().inflate(R.layout.dialog_export_settings, null);
+        Spinner formatSpinner = view.findViewById(R.id.spinnerExportFormat);
+        Slider qualitySlider = view.findViewById(R.id.sliderExportQuality);
+        TextView qualityText = view.findViewById(R.id.textExportQuality);
+        Spinner sizeSpinner = view.findViewById(R.id.spinnerExportSize);
+
+        ExportSettings.Format[] formats = ExportSettings.Format.values();
+        String[] formatNames = new String[formats.length];
+        for (int i = 0; i < formats.length; i++) {
+            formatNames[i] = formats[i].name();
+        }
+        int[] sizes = ExportSettings.MAX_DIMENSION_CHOICES;
+        String[] sizeNames = new String[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            sizeNames[i] = sizes[i] == 0 ? getString(R.string.export_full_resolution)
+                    : String.format(Locale.US, getString(R.string.export_size_format), sizes[i]);
+        }
+        formatSpinner.setAdapter(spinnerAdapter(formatNames));
+        formatSpinner.setSelection(exportSettings.getFormat().ordinal());
+        sizeSpinner.setAdapter(spinnerAdapter(sizeNames));
+        sizeSpinner.setSelection(exportSettings.getMaxDimensionChoice());
+
+        qualitySlider.setValue(Math.max(qualitySlider.getValueFrom(), exportSettings.getQuality()));
+        Runnable updateQuality = () -> {
+            // PNG is lossless, the quality does not apply to it
+            boolean lossless = formats[formatSpinner.getSelectedItemPosition()] == ExportSettings.Format.PNG;
+            qualitySlider.setEnabled(!lossless);
+            qualityText.setText(lossless ? getString(R.string.export_quality_lossless)
+                    : String.format(Locale.US, getString(R.string.export_quality_format), (int) qualitySlider.getValue()));
+        };
+        qualitySlider.addOnChangeListener((slider, value, fromUser) -> updateQuality.run());
+        formatSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View selected, int position, long id) {
+                updateQuality.run();
+            }
 
-            // Create unique filename with timestamp
-            String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
-            String filename = "shared_image_" + timestamp + ".png";
-            File file = new File(cachePath, filename);
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+        updateQuality.run();
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.share_as)
+                .setView(view)
+                .setPositiveButton(R.string.apply, (dialog, which) -> {
+                    exportSettings.setFormat(formats[formatSpinner.getSelectedItemPosition()]);
+                    exportSettings.setQuality((int) qualitySlider.getValue());
+                    exportSettings.setMaxDimensionChoice(sizeSpinner.getSelectedItemPosition());
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
 
-            FileOutputStream fOut = new FileOutputStream(file);
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, fOut);
-            fOut.flush();
-            fOut.close();
+    private ArrayAdapter<String> spinnerAdapter(String[] items) {
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, items);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        return adapter;
+    }
 
+    // Encodes the image in the background as the export settings ask, with the film look unless
+    // parameters is null, and shares the file
+    private void exportAndShare(EffectParameters parameters) {
+        if (!openCvLoaded) {
+            // Region decoding and tiled rendering run on OpenCV Mats
+            Toast.makeText(this, "Sharing is unavailable without OpenCV", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        ExportSettings settings = new ExportSettings(exportSettings);
+        File file;
+        try {
+            file = shareCache.newFile(settings.getFormat().getExtension());
+        } catch (IOException e) {
+            Log.e("MainActivity", "Failed to create cache directory");
+            Toast.makeText(this, "Failed to create directory", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        renderProgress.setProgressCompat(0, false);
+        renderProgress.setVisibility(View.VISIBLE);
+        renderService.submitExport(regionExporter, sourceImage, parameters, settings, file, new RenderService.ExportCallback() {
+            @Override
+            public void onProgress(RenderStage stage, int completed, int total) {
+                renderProgress.setMax(total);
+                renderProgress.setProgressCompat(completed, true);
+            }
+
+            @Override
+            public void onExported(File file) {
+                hideRenderProgress();
+                shareFile(file, settings.getFormat().getMimeType());
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                hideRenderProgress();
+                Toast.makeText(MainActivity.this, "Failed to share image", Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onCancelled() {
+                hideRenderProgress();
+                Toast.makeText(MainActivity.this, "Share cancelled", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void shareFile(File file, String mimeType) {
+        try {
             // Create a content URI for the file
             Uri contentUri = FileProvider.getUriForFile(
                 this,
@@ -234,11 +643,11 @@ public class MainActivity extends AppCompatActivity {
 
             // Create and launch the share intent
             Intent shareIntent = new Intent(Intent.ACTION_SEND);
-            shareIntent.setType("image/png");
+            shareIntent.setType(mimeType);
             shareIntent.putExtra(Intent.EXTRA_STREAM, contentUri);
             shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
             startActivity(Intent.createChooser(shareIntent, "Share image via"));
-        } catch (IOException e) {
+        } catch (IllegalArgumentException e) {
             Log.e("MainActivity", "Error sharing image: " + e.getMessage());
             Toast.makeText(this, "Failed to share image", Toast.LENGTH_SHORT).show();
         }
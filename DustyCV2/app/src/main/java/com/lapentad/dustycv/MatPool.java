@@ -0,0 +1,93 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Scratch buffers for the pipeline stages, keyed by size and type. Stages borrow a Mat, write into
+ * it and give it back, so once a render of a given image size has run, the next render of the
+ * same size reuses the same native buffers instead of allocating new ones.
+ * Safe to share between the threads of a tiled render.
+ */
+public class MatPool {
+    private final Map<Long, ArrayDeque<Mat>> free = new HashMap<>();
+    private Mat empty;
+    private long hits = 0;
+    private long misses = 0;
+    private long allocatedBytes = 0;
+
+    public Mat acquire(Size size, int type) {
+        return acquire((int) size.height, (int) size.width, type);
+    }
+
+    public synchronized Mat acquire(int rows, int cols, int type) {
+        ArrayDeque<Mat> mats = free.get(key(rows, cols, type));
+        if (mats != null && !mats.isEmpty()) {
+            hits++;
+            return mats.pop();
+        }
+        misses++;
+        allocatedBytes += (long) rows * cols * CvType.ELEM_SIZE(type);
+        return new Mat(rows, cols, type);
+    }
+
+    // Gives a Mat back to the pool; Mats of any size may be returned, including ones not from the pool
+    public synchronized void release(Mat mat) {
+        if (mat == null || mat.empty()) {
+            return;
+        }
+        long key = key(mat.rows(), mat.cols(), mat.type());
+        ArrayDeque<Mat> mats = free.get(key);
+        if (mats == null) {
+            mats = new ArrayDeque<>();
+            free.put(key, mats);
+        }
+        mats.push(mat);
+    }
+
+    public void release(Mat... mats) {
+        for (Mat mat : mats) {
+            release(mat);
+        }
+    }
+
+    // Shared empty Mat, e.g. for the default 3x3 dilation kernel. Must not be written to.
+    public synchronized Mat empty() {
+        if (empty == null) {
+            empty = new Mat();
+        }
+        return empty;
+    }
+
+    // Frees every pooled buffer, Mats currently borrowed are unaffected
+    public synchronized void clear() {
+        for (ArrayDeque<Mat> mats : free.values()) {
+            for (Mat mat : mats) {
+                mat.release();
+            }
+        }
+        free.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    // Native bytes allocated by misses since the pool was created
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private static long key(int rows, int cols, int type) {
+        return ((long) rows << 40) | ((long) cols << 16) | type;
+    }
+}
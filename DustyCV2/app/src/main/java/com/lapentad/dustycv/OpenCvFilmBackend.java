@@ -0,0 +1,29 @@
+package com.lapentad.dustycv;
+
+import android.graphics.Bitmap;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+// Renders bitmaps with FilmPipeline, tile by tile when they are large
+class OpenCvFilmBackend implements FilmBackend {
+    @Override
+    public Bitmap render(Bitmap bitmap, EffectParameters parameters, RenderContext context, Bitmap output) {
+        MatPool pool = context.getPool();
+        int rows = bitmap.getHeight();
+        int cols = bitmap.getWidth();
+        // The pipeline works in the bitmap's own RGBA order, no conversion to BGR and back
+        Mat src = pool.acquire(rows, cols, CvType.CV_8UC4);
+        try {
+            Utils.bitmapToMat(bitmap, src);
+
+            src = FilmPipeline.render(src, parameters, context);
+
+            Mat rendered = src;
+            return ImageProcessor.writeResult(output, cols, rows, context, result -> Utils.matToBitmap(rendered, result));
+        } finally {
+            pool.release(src);
+        }
+    }
+}
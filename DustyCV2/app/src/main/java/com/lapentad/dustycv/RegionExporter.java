@@ -0,0 +1,292 @@
+package com.lapentad.dustycv;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Exports a {@link SourceImage}. At full resolution the source is never decoded whole: it is read
+ * region by region with BitmapRegionDecoder and rendered band by band with {@link TiledRenderer}.
+ * For PNG each finished band is encoded straight away, so memory follows the band, not the image.
+ * The output is the same as rendering the whole image at once.
+ */
+public class RegionExporter {
+    private static final String TAG = "RegionExporter";
+    public static final int DEFAULT_BAND_HEIGHT = TiledRenderer.DEFAULT_TILE_SIZE;
+
+    private final ContentResolver contentResolver;
+    private final ImageLoader imageLoader;
+
+    public RegionExporter(Context context) {
+        contentResolver = context.getApplicationContext().getContentResolver();
+        imageLoader = new ImageLoader(context);
+    }
+
+    /**
+     * Writes source to out as settings ask, with the film look unless parameters is null. The
+     * context's render scale must be the settings' scale for the source. Full resolution PNGs are
+     * streamed band by band. The lossy encoders need the whole image, so there the bands are
+     * rendered into one bitmap, and scaled down exports are decoded at their size and rendered at once.
+     */
+    public void export(SourceImage source, EffectParameters parameters, ExportSettings settings,
+                       RenderContext context, OutputStream out) throws IOException {
+        double scale = settings.getScale(source.getWidth(), source.getHeight());
+        if (parameters != null && scale == 1.0 && settings.getFormat() == ExportSettings.Format.PNG) {
+            exportPng(source, parameters, context, out);
+            return;
+        }
+
+        Bitmap bitmap;
+        if (parameters != null && scale == 1.0) {
+            bitmap = renderBitmap(source, parameters, context);
+        } else {
+            bitmap = scale < 1.0 ? imageLoader.loadScaled(source, scale) : imageLoader.loadForExport(source);
+            if (parameters != null) {
+                Bitmap rendered = ImageProcessor.applyFilmLook(bitmap, parameters, context);
+                if (rendered != bitmap) {
+                    bitmap.recycle();
+                    bitmap = rendered;
+                }
+            }
+        }
+        try {
+            long start = System.nanoTime();
+            if (!bitmap.compress(settings.getFormat().getCompressFormat(), settings.getQuality(), out)) {
+                throw new IOException("Could not encode " + settings.getFormat());
+            }
+            Log.d(TAG, "Encoded " + bitmap.getWidth() + "x" + bitmap.getHeight() + " " + settings.getFormat()
+                    + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    // Renders the region in use of source at full resolution and writes it to out as a PNG
+    public void exportPng(SourceImage source, EffectParameters parameters, RenderContext context,
+                          OutputStream out) throws IOException {
+        RegionSource regions = openRegions(source, context.getPool());
+        try {
+            export(regions, parameters, context, out, DEFAULT_BAND_HEIGHT);
+        } finally {
+            regions.recycle();
+        }
+    }
+
+    // Renders the region in use of source at full resolution into a bitmap, one band at a time
+    public Bitmap renderBitmap(SourceImage source, EffectParameters parameters, RenderContext context)
+            throws IOException {
+        RegionSource regions = openRegions(source, context.getPool());
+        Bitmap bitmap = Bitmap.createBitmap(regions.getWidth(), regions.getHeight(), Bitmap.Config.ARGB_8888);
+        int[] colors = new int[regions.getWidth() * DEFAULT_BAND_HEIGHT];
+        byte[] bytes = new byte[colors.length * 4];
+        Mat bgra = new Mat();
+        int[] nextRow = {0};
+        try {
+            render(regions, parameters, context, DEFAULT_BAND_HEIGHT, band -> {
+                // BGRA bytes read as little endian ints are the ARGB colours setPixels takes. It
+                // premultiplies them again, which only matters for transparent sources.
+                Imgproc.cvtColor(band, bgra, Imgproc.COLOR_RGBA2BGRA);
+                int count = (int) band.total();
+                bgra.get(0, 0, bytes);
+                ByteBuffer.wrap(bytes, 0, count * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(colors, 0, count);
+                bitmap.setPixels(colors, 0, band.cols(), 0, nextRow[0], band.cols(), band.rows());
+                nextRow[0] += band.rows();
+            });
+            return bitmap;
+        } catch (IOException | RuntimeException e) {
+            bitmap.recycle();
+            throw e;
+        } finally {
+            bgra.release();
+            regions.recycle();
+        }
+    }
+
+    private RegionSource openRegions(SourceImage source, MatPool pool) throws IOException {
+        int orientation;
+        try (InputStream in = contentResolver.openInputStream(source.getUri())) {
+            orientation = new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        }
+        BitmapRegionDecoder decoder;
+        try (InputStream in = contentResolver.openInputStream(source.getUri())) {
+            decoder = BitmapRegionDecoder.newInstance(in);
+        }
+        return new RegionSource(decoder, orientation, source.getCrop(), pool);
+    }
+
+    // Renders source band by band into a PNG, bandHeight is also the tile size
+    public static void export(TiledRenderer.TileSource source, EffectParameters parameters, RenderContext context,
+                              OutputStream out, int bandHeight) throws IOException {
+        StreamingPngWriter writer = new StreamingPngWriter(out, source.getWidth(), source.getHeight());
+        render(source, parameters, context, bandHeight, writer::writeRows);
+        writer.finish();
+    }
+
+    public interface BandWriter {
+        // Receives a CV_8UC4 band of the image, bands arrive from top to bottom
+        void write(Mat band) throws IOException;
+    }
+
+    // Renders source band by band, handing each finished band of rows to writer
+    static void render(TiledRenderer.TileSource source, EffectParameters parameters, RenderContext context,
+                       int bandHeight, BandWriter writer) throws IOException {
+        MatPool pool = context.getPool();
+        Mat band = pool.acquire(bandHeight, source.getWidth(), CvType.CV_8UC4);
+        try {
+            TiledRenderer.renderBands(source, new TiledRenderer.TileSink() {
+                @Override
+                public void write(Rect region, Mat tile) {
+                    tile.copyTo(band.submat(new Rect(region.x, region.y % bandHeight, region.width, region.height)));
+                }
+
+                @Override
+                public void bandComplete(int y, int height) {
+                    try {
+                        writer.write(band.rowRange(0, height));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }, parameters, context, bandHeight);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.release(band);
+        }
+    }
+
+    /**
+     * Reads regions of the oriented, cropped image from the stored pixels. BitmapRegionDecoder
+     * works on the stored pixels, so each region is mapped through the EXIF orientation, decoded
+     * and then turned the way ImageDecoder turned the image the crop was made on.
+     */
+    static class RegionSource implements TiledRenderer.TileSource {
+        private final BitmapRegionDecoder decoder;
+        private final int orientation;
+        private final Rect crop;
+        private final MatPool pool;
+
+        RegionSource(BitmapRegionDecoder decoder, int orientation, android.graphics.Rect crop, MatPool pool) {
+            this.decoder = decoder;
+            this.orientation = orientation;
+            this.crop = new Rect(crop.left, crop.top, crop.width(), crop.height());
+            this.pool = pool;
+        }
+
+        void recycle() {
+            decoder.recycle();
+        }
+
+        @Override
+        public int getWidth() {
+            return crop.width;
+        }
+
+        @Override
+        public int getHeight() {
+            return crop.height;
+        }
+
+        @Override
+        public Mat read(Rect region) {
+            int x = crop.x + region.x;
+            int y = crop.y + region.y;
+            int w = region.width;
+            int h = region.height;
+            int storedWidth = decoder.getWidth();
+            int storedHeight = decoder.getHeight();
+
+            // The region in stored pixels, see the EXIF orientation values
+            android.graphics.Rect stored;
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                    stored = new android.graphics.Rect(storedWidth - x - w, y, storedWidth - x, y + h);
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    stored = new android.graphics.Rect(storedWidth - x - w, storedHeight - y - h, storedWidth - x, storedHeight - y);
+                    break;
+                case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                    stored = new android.graphics.Rect(x, storedHeight - y - h, x + w, storedHeight - y);
+                    break;
+                case ExifInterface.ORIENTATION_TRANSPOSE:
+                    stored = new android.graphics.Rect(y, x, y + h, x + w);
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    stored = new android.graphics.Rect(y, storedHeight - x - w, y + h, storedHeight - x);
+                    break;
+                case ExifInterface.ORIENTATION_TRANSVERSE:
+                    stored = new android.graphics.Rect(storedWidth - y - h, storedHeight - x - w, storedWidth - y, storedHeight - x);
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    stored = new android.graphics.Rect(storedWidth - y - h, x, storedWidth - y, x + w);
+                    break;
+                default:
+                    stored = new android.graphics.Rect(x, y, x + w, y + h);
+                    break;
+            }
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            Bitmap bitmap = decoder.decodeRegion(stored, options);
+            if (bitmap == null) {
+                throw new IllegalStateException("Could not decode region " + stored);
+            }
+            Mat pixels = pool.acquire(bitmap.getHeight(), bitmap.getWidth(), CvType.CV_8UC4);
+            Utils.bitmapToMat(bitmap, pixels);
+            bitmap.recycle();
+            if (orientation == ExifInterface.ORIENTATION_NORMAL || orientation == ExifInterface.ORIENTATION_UNDEFINED) {
+                return pixels;
+            }
+
+            Mat tile = pool.acquire(h, w, CvType.CV_8UC4);
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                    Core.flip(pixels, tile, 1);
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    Core.rotate(pixels, tile, Core.ROTATE_180);
+                    break;
+                case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                    Core.flip(pixels, tile, 0);
+                    break;
+                case ExifInterface.ORIENTATION_TRANSPOSE:
+                    Core.transpose(pixels, tile);
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    Core.rotate(pixels, tile, Core.ROTATE_90_CLOCKWISE);
+                    break;
+                case ExifInterface.ORIENTATION_TRANSVERSE:
+                    Core.transpose(pixels, tile);
+                    Core.flip(tile, tile, -1);
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    Core.rotate(pixels, tile, Core.ROTATE_90_COUNTERCLOCKWISE);
+                    break;
+                default:
+                    pixels.copyTo(tile);
+                    break;
+            }
+            pool.release(pixels);
+            return tile;
+        }
+    }
+}
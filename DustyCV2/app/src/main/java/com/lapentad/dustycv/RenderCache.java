@@ -0,0 +1,137 @@
+package com.lapentad.dustycv;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.util.LruCache;
+
+import java.util.Objects;
+
+/**
+ * Finished preview renders, keyed by the region of the source image they show, their size and
+ * every effect parameter, so going back to a look rendered before shows it without running the
+ * pipeline. Bounded in bytes, the least recently shown renders go first. The cache takes renders
+ * as they leave the screen rather than copying them, and hands the bitmaps it drops back for the
+ * next render to write into, so once it is full editing allocates no bitmaps. Cached bitmaps
+ * never go on screen themselves, a hit is copied into the render target.
+ */
+public class RenderCache {
+    // Share of the app's memory class the cache may hold
+    private static final int MEMORY_CLASS_DIVISOR = 4;
+
+    // Copies pixels as they are, alpha included
+    private static final Paint COPY_PAINT = new Paint();
+
+    static {
+        COPY_PAINT.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    static final class Key {
+        private final String source;
+        private final int width;
+        private final int height;
+        private final EffectParameters parameters;
+
+        Key(SourceImage source, Bitmap bitmap, EffectParameters parameters) {
+            this.source = source.getUri() + "#" + source.getCrop().flattenToString();
+            width = bitmap.getWidth();
+            height = bitmap.getHeight();
+            // The caller's parameters keep changing
+            this.parameters = new EffectParameters(parameters);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return width == other.width && height == other.height && source.equals(other.source)
+                    && parameters.equals(other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, width, height, parameters);
+        }
+    }
+
+    private final LruCache<Key, Bitmap> cache;
+    // A bitmap the cache dropped, for the next render to write into
+    private Bitmap spare;
+
+    public RenderCache(Context context) {
+        ActivityManager activityManager = context.getSystemService(ActivityManager.class);
+        long maxBytes = (long) activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+        cache = new LruCache<Key, Bitmap>((int) Math.min(Integer.MAX_VALUE, maxBytes)) {
+            @Override
+            protected int sizeOf(Key key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue && spare == null) {
+                    spare = oldValue;
+                }
+            }
+        };
+    }
+
+    // Key of the render of bitmap, a view of source, with parameters
+    public static Key key(SourceImage source, Bitmap bitmap, EffectParameters parameters) {
+        return new Key(source, bitmap, parameters);
+    }
+
+    // The render for key, or null
+    public Bitmap get(Key key) {
+        return cache.get(key);
+    }
+
+    /**
+     * Keeps rendered, the render for key, without copying it. The caller must not draw or write
+     * it afterwards. Returns a bitmap the cache no longer holds, possibly rendered itself when it
+     * is too large to keep, for the next render to write into, or null.
+     */
+    public synchronized Bitmap keep(Key key, Bitmap rendered) {
+        cache.put(key, rendered);
+        Bitmap dropped = spare;
+        spare = null;
+        return dropped;
+    }
+
+    /**
+     * Copies cached into output when it is a mutable ARGB_8888 bitmap large enough to hold it,
+     * like ImageProcessor.applyFilmLook, otherwise into a new bitmap. Returns the copy.
+     */
+    public static Bitmap copy(Bitmap cached, Bitmap output) {
+        if (output == null || output.isRecycled() || !output.isMutable()
+                || output.getConfig() != Bitmap.Config.ARGB_8888
+                || output.getAllocationByteCount() < cached.getAllocationByteCount()) {
+            return cached.copy(Bitmap.Config.ARGB_8888, true);
+        }
+        // A cancelled render may still hold output, see ImageProcessor.writeResult
+        synchronized (output) {
+            if (output.getWidth() != cached.getWidth() || output.getHeight() != cached.getHeight()) {
+                output.reconfigure(cached.getWidth(), cached.getHeight(), Bitmap.Config.ARGB_8888);
+            }
+            new Canvas(output).drawBitmap(cached, 0, 0, COPY_PAINT);
+        }
+        return output;
+    }
+
+    // Drops half the cache while the app is hidden and all of it once it is in the background
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            cache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            cache.trimToSize(cache.maxSize() / 2);
+        }
+        spare = null;
+    }
+}
@@ -0,0 +1,320 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-render state shared by the pipeline stages: cancellation, progress reporting, the render
+ * scale, the scratch buffer pool and, when rendering tile by tile, the whole-frame statistics.
+ * Cancellation is cooperative, the pipeline checks it between stages.
+ */
+public class RenderContext {
+    public interface ProgressListener {
+        void onStageCompleted(RenderStage stage, int completed, int total);
+    }
+
+    // Thrown by a tile in a statistics pass once it has reported the statistic the pass collects
+    static class StatisticCollected extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StatisticCollected() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final RenderContext parent;
+    private final ProgressListener progressListener;
+    private final MatPool pool;
+    // Size of the rendered image relative to the full resolution image, below 1 for preview proxies
+    private final double renderScale;
+    private volatile boolean cancelled = false;
+    private final AtomicInteger completedStages = new AtomicInteger();
+    private volatile int totalStages = RenderStage.values().length;
+    private final Map<RenderStage, GlowBlur.Mode> blurModes = new EnumMap<>(RenderStage.class);
+    private volatile boolean nativeKernels = false;
+    private volatile StageTracer tracer = StageTracer.NONE;
+    // Off unless a listener is set, the metrics of the render so far otherwise
+    private volatile RenderMetrics.Listener metricsListener;
+    private RenderMetrics metrics;
+    // The stage this context is running on its thread, and what the clocks read when it began
+    private RenderStage openStage;
+    private RenderMetrics stageMetrics;
+    private long stageStartNanos;
+    private long stageStartCpuNanos;
+    private long stageStartBytes;
+    // Whole-frame renders only: stage outputs kept across renders of the same source
+    private StageCache stageCache;
+    private Object stageSource;
+    private int stageSourceVersion;
+
+    // Tile rendering only: frame statistics, the haloed tile's region within the frame, the
+    // tile's own region within its haloed Mat, and whether this tile reports progress
+    // (statistics passes do not)
+    private final FrameStats frameStats;
+    private final Rect tileRegion;
+    private final Rect coreRegion;
+    private final boolean reportsProgress;
+
+    public RenderContext() {
+        this(1.0, new MatPool(), null);
+    }
+
+    public RenderContext(double renderScale, MatPool pool, ProgressListener progressListener) {
+        this(null, renderScale, pool, progressListener, null, null, null, true);
+    }
+
+    private RenderContext(RenderContext parent, double renderScale, MatPool pool, ProgressListener progressListener,
+                          FrameStats frameStats, Rect tileRegion, Rect coreRegion, boolean reportsProgress) {
+        this.parent = parent;
+        this.renderScale = renderScale;
+        this.pool = pool;
+        this.progressListener = progressListener;
+        this.frameStats = frameStats;
+        this.tileRegion = tileRegion;
+        this.coreRegion = coreRegion;
+        this.reportsProgress = reportsProgress;
+    }
+
+    // Context for one tile of a tiled render, sharing this context's cancellation and progress
+    RenderContext forTile(FrameStats frameStats, Rect tileRegion, Rect coreRegion) {
+        return new RenderContext(this, renderScale, pool, null, frameStats, tileRegion, coreRegion,
+                frameStats.isComplete());
+    }
+
+    public double getRenderScale() {
+        return renderScale;
+    }
+
+    public MatPool getPool() {
+        return pool;
+    }
+
+    // Blur engine for the glow masks of a stage, EXACT unless set
+    public GlowBlur.Mode getBlurMode(RenderStage stage) {
+        if (parent != null) {
+            return parent.getBlurMode(stage);
+        }
+        synchronized (blurModes) {
+            GlowBlur.Mode mode = blurModes.get(stage);
+            return mode != null ? mode : GlowBlur.Mode.EXACT;
+        }
+    }
+
+    public void setBlurMode(RenderStage stage, GlowBlur.Mode mode) {
+        synchronized (blurModes) {
+            blurModes.put(stage, mode);
+        }
+    }
+
+    // Whether the per-pixel passes run in FilmKernels, only if its library loaded
+    public boolean useNativeKernels() {
+        if (parent != null) {
+            return parent.useNativeKernels();
+        }
+        return nativeKernels && FilmKernels.isAvailable();
+    }
+
+    public void setNativeKernels(boolean nativeKernels) {
+        this.nativeKernels = nativeKernels;
+    }
+
+    public StageTracer getStageTracer() {
+        return parent != null ? parent.getStageTracer() : tracer;
+    }
+
+    // Brackets each stage of the renders with this context, StageTracer.NONE unless set
+    public void setStageTracer(StageTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Has listener receive the {@link RenderMetrics} of the render once all its stages complete,
+     * or stops measuring when null, the default. Measuring reads the clocks twice per stage.
+     */
+    public void setMetricsListener(RenderMetrics.Listener listener) {
+        metricsListener = listener;
+    }
+
+    /**
+     * Lets a whole-frame render restart from the stage its parameters changed at. source stands
+     * for the input pixels and version must change whenever they do, e.g. a bitmap and its
+     * generation id.
+     */
+    public void setStageCache(StageCache cache, Object source, int version) {
+        stageCache = cache;
+        stageSource = source;
+        stageSourceVersion = version;
+    }
+
+    // The stage cache of a whole-frame render, tiles have none
+    StageCache getStageCache() {
+        return parent == null ? stageCache : null;
+    }
+
+    long beginStageCache() {
+        return stageCache.begin(stageSource, stageSourceVersion, renderScale);
+    }
+
+    // Kernel sizes are specified at full resolution, shrink them with the image so the look matches
+    int scaleKernelSize(int fullResolutionSize) {
+        int scaled = (int) Math.round(fullResolutionSize * renderScale);
+        return Math.max(3, scaled) | 1;
+    }
+
+    int scaleIterations(int fullResolutionIterations) {
+        return Math.max(1, (int) Math.round(fullResolutionIterations * renderScale));
+    }
+
+    // Position of the rendered Mat's top left pixel within the frame
+    int getFrameX() {
+        return tileRegion != null ? tileRegion.x : 0;
+    }
+
+    int getFrameY() {
+        return tileRegion != null ? tileRegion.y : 0;
+    }
+
+    // Pixel area of the whole frame being rendered, not just the current tile
+    double frameArea(Mat img) {
+        if (frameStats != null) {
+            return (double) frameStats.getWidth() * frameStats.getHeight();
+        }
+        return img.total();
+    }
+
+    // Pixel area of the full resolution image this render stands in for
+    double fullResolutionArea(double renderedArea) {
+        return renderedArea / (renderScale * renderScale);
+    }
+
+    double resolveBrightness(Mat gray) {
+        if (frameStats == null) {
+            return Core.mean(gray).val[0];
+        }
+        if (frameStats.isBrightnessKnown()) {
+            return frameStats.getBrightness();
+        }
+        Mat core = core(gray);
+        frameStats.accumulateBrightness(Core.sumElems(core).val[0], core.total());
+        throw new StatisticCollected();
+    }
+
+    // Min and max for a NORM_MINMAX normalisation, over the whole frame when rendering tiles
+    double[] resolveRange(FrameStats.Range range, Mat values) {
+        if (frameStats != null && frameStats.isKnown(range)) {
+            return frameStats.getRange(range);
+        }
+        Core.MinMaxLocResult local = Core.minMaxLoc(core(values));
+        if (frameStats != null) {
+            frameStats.accumulateRange(range, local.minVal, local.maxVal);
+            throw new StatisticCollected();
+        }
+        return new double[]{local.minVal, local.maxVal};
+    }
+
+    private Mat core(Mat values) {
+        return coreRegion == null ? values : values.submat(coreRegion);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return parent != null ? parent.isCancelled() : cancelled;
+    }
+
+    void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Render cancelled");
+        }
+    }
+
+    // Progress of a tiled render is counted in tile stages rather than stages
+    void setTileCount(int tiles) {
+        completedStages.set(0);
+        totalStages = tiles * RenderStage.values().length;
+    }
+
+    // Marks the start of a stage over a width x height image or tile, completeStage ends it on the
+    // same thread
+    void beginStage(RenderStage stage, int width, int height) {
+        openStage = stage;
+        getStageTracer().beginSection(stage);
+        RenderContext root = parent != null ? parent : this;
+        if (root.metricsListener != null) {
+            stageMetrics = root.metrics(frameStats != null ? frameStats.getWidth() : width,
+                    frameStats != null ? frameStats.getHeight() : height);
+            stageStartBytes = getStageTracer().nativeHeapBytes();
+            stageStartCpuNanos = getStageTracer().threadCpuNanos();
+            stageStartNanos = System.nanoTime();
+        }
+    }
+
+    // Closes the section of a stage that threw, it is left out of the metrics
+    void abandonStage() {
+        if (openStage != null) {
+            openStage = null;
+            stageMetrics = null;
+            getStageTracer().endSection();
+        }
+    }
+
+    private synchronized RenderMetrics metrics(int width, int height) {
+        if (metrics == null) {
+            metrics = new RenderMetrics(width, height);
+        }
+        return metrics;
+    }
+
+    private void endStage(RenderStage stage) {
+        if (openStage != stage) {
+            return;
+        }
+        if (stageMetrics != null) {
+            long wall = System.nanoTime() - stageStartNanos;
+            stageMetrics.add(stage, wall, getStageTracer().threadCpuNanos() - stageStartCpuNanos,
+                    getStageTracer().nativeHeapBytes() - stageStartBytes);
+            stageMetrics = null;
+        }
+        openStage = null;
+        getStageTracer().endSection();
+    }
+
+    // Hands the metrics of a render whose stages have all completed to the listener
+    private void reportMetrics() {
+        RenderMetrics.Listener listener = metricsListener;
+        RenderMetrics finished;
+        synchronized (this) {
+            finished = metrics;
+            metrics = null;
+        }
+        if (listener != null && finished != null) {
+            listener.onRenderMeasured(finished);
+        }
+    }
+
+    void completeStage(RenderStage stage) {
+        endStage(stage);
+        if (parent != null) {
+            if (reportsProgress) {
+                parent.completeStage(stage);
+            }
+        } else {
+            int completed = completedStages.incrementAndGet();
+            if (progressListener != null) {
+                progressListener.onStageCompleted(stage, completed, totalStages);
+            }
+            if (completed == totalStages) {
+                reportMetrics();
+            }
+        }
+        throwIfCancelled();
+    }
+}
@@ -0,0 +1,86 @@
+package com.lapentad.dustycv;
+
+import java.util.Locale;
+
+/**
+ * Where one render's time went, stage by stage: wall time, CPU time of the threads that ran the
+ * stage and growth of the native heap. Tiled renders add their tiles up, so the wall time of tiles
+ * rendered side by side adds up to more than the render took.
+ * <p>
+ * CPU time leaves out the worker threads OpenCV and the native kernels spread a call over. Heap
+ * growth is that of the whole process while the stage ran, so it drops when a stage frees more
+ * than it allocates and includes whatever else allocated meanwhile.
+ */
+public final class RenderMetrics {
+    /** Receives the metrics of each finished render, on the thread that finished it. */
+    public interface Listener {
+        void onRenderMeasured(RenderMetrics metrics);
+    }
+
+    private static final RenderStage[] STAGES = RenderStage.values();
+
+    private final int width;
+    private final int height;
+    private final long[] wallNanos = new long[STAGES.length];
+    private final long[] cpuNanos = new long[STAGES.length];
+    private final long[] heapBytes = new long[STAGES.length];
+
+    RenderMetrics(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    synchronized void add(RenderStage stage, long wall, long cpu, long bytes) {
+        wallNanos[stage.ordinal()] += wall;
+        cpuNanos[stage.ordinal()] += cpu;
+        heapBytes[stage.ordinal()] += bytes;
+    }
+
+    // Size of the rendered frame
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public synchronized long getWallNanos(RenderStage stage) {
+        return wallNanos[stage.ordinal()];
+    }
+
+    // Zero where the platform has no thread CPU clock, see StageTracer.threadCpuNanos
+    public synchronized long getThreadCpuNanos(RenderStage stage) {
+        return cpuNanos[stage.ordinal()];
+    }
+
+    public synchronized long getNativeHeapGrowth(RenderStage stage) {
+        return heapBytes[stage.ordinal()];
+    }
+
+    public synchronized long getTotalWallNanos() {
+        long total = 0;
+        for (long nanos : wallNanos) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    // One line per stage and a total, for logs and the debug overlay
+    public synchronized String format() {
+        StringBuilder text = new StringBuilder(String.format(Locale.US, "%d x %d%n%-13s %8s %8s %7s", width,
+                height, "", "wall ms", "cpu ms", "heap MB"));
+        long totalCpu = 0;
+        long totalBytes = 0;
+        for (RenderStage stage : STAGES) {
+            int i = stage.ordinal();
+            text.append(String.format(Locale.US, "%n%-13s %8.1f %8.1f %7.1f", stage, wallNanos[i] / 1e6,
+                    cpuNanos[i] / 1e6, heapBytes[i] / 1e6));
+            totalCpu += cpuNanos[i];
+            totalBytes += heapBytes[i];
+        }
+        text.append(String.format(Locale.US, "%n%-13s %8.1f %8.1f %7.1f", "TOTAL", getTotalWallNanos() / 1e6,
+                totalCpu / 1e6, totalBytes / 1e6));
+        return text.toString();
+    }
+}
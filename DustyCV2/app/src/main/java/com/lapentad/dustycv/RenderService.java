@@ -0,0 +1,309 @@
+package com.lapentad.dustycv;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs applyFilmLook jobs on a small background pool. Previews and exports each keep one job:
+ * submitting a new one cancels the previous one of its kind, and stale results are never
+ * delivered. Callbacks are always invoked on the main thread.
+ */
+public class RenderService {
+    private static final String TAG = "RenderService";
+
+    public interface Callback {
+        void onProgress(RenderStage stage, int completed, int total);
+
+        void onResult(Bitmap result);
+
+        // The render threw, most likely running out of memory on a large frame
+        void onFailed(Throwable error);
+
+        void onCancelled();
+    }
+
+    public interface ExportCallback {
+        void onProgress(RenderStage stage, int completed, int total);
+
+        void onExported(File file);
+
+        // Failures other than I/O ones, e.g. running out of memory, come wrapped in an IOException
+        void onFailed(IOException e);
+
+        void onCancelled();
+    }
+
+    public interface LoadCallback {
+        void onLoaded(Bitmap bitmap);
+
+        // Failures other than I/O ones, e.g. running out of memory, come wrapped in an IOException
+        void onFailed(IOException e);
+    }
+
+    private final ThreadPoolExecutor executor;
+    // Exports run on their own worker, so queued previews can never push one out of the queue
+    private final ThreadPoolExecutor exportExecutor;
+    // Decodes picked images, so a large pick never stalls the main thread
+    private final ThreadPoolExecutor loadExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Scratch buffers shared by every job, so re-rendering the same image allocates nothing
+    private final MatPool pool = new MatPool();
+    private int pooledWidth = 0;
+    private int pooledHeight = 0;
+    // Stage outputs of the last preview, a slider move reruns the stages from the one it affects
+    private final StageCache stageCache = new StageCache();
+    private volatile FilmBackend backend = FilmBackend.OPENCV;
+    private volatile boolean nativeKernels = true;
+    private volatile RenderMetrics.Listener metricsListener;
+
+    private final Slot previews = new Slot();
+    private final Slot exports = new Slot();
+    private final Slot loads = new Slot();
+
+    // The latest job of one kind, guarded by the service
+    private static class Slot {
+        long generation = 0;
+        RenderContext context;
+        Future<?> future;
+        Runnable onCancelled;
+    }
+
+    public RenderService() {
+        // Two workers let a new job start while a cancelled one winds down to its next stage boundary
+        int workers = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors()));
+        executor = new ThreadPoolExecutor(workers, workers, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(4), new ThreadPoolExecutor.DiscardOldestPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        exportExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        exportExecutor.allowCoreThreadTimeOut(true);
+        loadExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        loadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // Runs load in the background and delivers its bitmap, unless a newer load was submitted since
+    public synchronized void submitLoad(Callable<Bitmap> load, LoadCallback callback) {
+        if (loads.future != null) {
+            loads.future.cancel(false);
+        }
+        final long jobGeneration = ++loads.generation;
+        loads.future = loadExecutor.submit(() -> {
+            try {
+                Bitmap bitmap = load.call();
+                finish(loads, jobGeneration, () -> callback.onLoaded(bitmap));
+            } catch (IOException e) {
+                Log.e(TAG, "Load job " + jobGeneration + " failed: " + e.getMessage());
+                finish(loads, jobGeneration, () -> callback.onFailed(e));
+            } catch (Exception | Error e) {
+                Log.e(TAG, "Load job " + jobGeneration + " failed", e);
+                IOException failure = new IOException("Load failed", e);
+                finish(loads, jobGeneration, () -> callback.onFailed(failure));
+            }
+        });
+    }
+
+    public void submit(Bitmap bitmap, EffectParameters parameters, Callback callback) {
+        submit(bitmap, parameters, 1.0, callback);
+    }
+
+    // renderScale is the size of bitmap relative to the full resolution image, see RenderContext
+    public void submit(Bitmap bitmap, EffectParameters parameters, double renderScale, Callback callback) {
+        submit(bitmap, parameters, renderScale, null, callback);
+    }
+
+    // Renders into output when it can hold the result, see ImageProcessor.applyFilmLook. The caller
+    // must not draw output until the callback reports the job finished.
+    public synchronized void submit(Bitmap bitmap, EffectParameters parameters, double renderScale, Bitmap output,
+                                    Callback callback) {
+        cancelCurrent(previews);
+
+        if (bitmap.getWidth() != pooledWidth || bitmap.getHeight() != pooledHeight) {
+            // Buffers sized for the previous image would never be hit again
+            pool.clear();
+            pooledWidth = bitmap.getWidth();
+            pooledHeight = bitmap.getHeight();
+        }
+
+        final long jobGeneration = ++previews.generation;
+        // The dialog keeps mutating its parameters, the job works on its own copy
+        final EffectParameters snapshot = new EffectParameters(parameters);
+        final RenderContext context = newContext(previews, jobGeneration, renderScale, callback::onProgress);
+        // The pyramid blur stays within a few levels of the exact one at a fraction of the cost, good
+        // enough for previews. Exports keep the exact blur, so they show the look as designed.
+        context.setBlurMode(RenderStage.HALATION, GlowBlur.Mode.PYRAMID);
+        context.setBlurMode(RenderStage.BLOOM, GlowBlur.Mode.PYRAMID);
+        context.setStageCache(stageCache, bitmap, bitmap.getGenerationId());
+
+        previews.context = context;
+        previews.onCancelled = callback::onCancelled;
+        previews.future = executor.submit(() -> {
+            try {
+                Bitmap result = ImageProcessor.applyFilmLook(bitmap, snapshot, context, output, backend);
+                Log.d(TAG, "Render job " + jobGeneration + " pool hits " + pool.getHits() + ", misses "
+                        + pool.getMisses() + ", allocated " + pool.getAllocatedBytes() + " bytes");
+                finish(previews, jobGeneration, () -> callback.onResult(result));
+            } catch (CancellationException e) {
+                Log.d(TAG, "Render job " + jobGeneration + " cancelled");
+            } catch (RuntimeException | Error e) {
+                // finish clears the slot, so the service does not report the job as rendering forever
+                Log.e(TAG, "Render job " + jobGeneration + " failed", e);
+                finish(previews, jobGeneration, () -> callback.onFailed(e));
+            }
+        });
+    }
+
+    // Encodes source into file as settings ask, with the film look unless parameters is null,
+    // see RegionExporter. Previews do not cancel it, only a newer export or cancelExport does.
+    public synchronized void submitExport(RegionExporter exporter, SourceImage source, EffectParameters parameters,
+                                          ExportSettings settings, File file, ExportCallback callback) {
+        cancelCurrent(exports);
+
+        final long jobGeneration = ++exports.generation;
+        final EffectParameters snapshot = parameters != null ? new EffectParameters(parameters) : null;
+        final double renderScale = settings.getScale(source.getWidth(), source.getHeight());
+        final RenderContext context = newContext(exports, jobGeneration, renderScale, callback::onProgress);
+
+        exports.context = context;
+        exports.onCancelled = callback::onCancelled;
+        exports.future = exportExecutor.submit(() -> {
+            boolean exported = false;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                exporter.export(source, snapshot, settings, context, out);
+                exported = true;
+            } catch (CancellationException e) {
+                Log.d(TAG, "Export job " + jobGeneration + " cancelled");
+            } catch (IOException e) {
+                Log.e(TAG, "Export job " + jobGeneration + " failed: " + e.getMessage());
+                finish(exports, jobGeneration, () -> callback.onFailed(e));
+            } catch (RuntimeException | Error e) {
+                // An undecodable region, no memory left for a band, a missing native library
+                Log.e(TAG, "Export job " + jobGeneration + " failed", e);
+                IOException failure = new IOException("Export failed", e);
+                finish(exports, jobGeneration, () -> callback.onFailed(failure));
+            } finally {
+                if (!exported && !file.delete()) {
+                    Log.w(TAG, "Could not delete partial export " + file);
+                }
+            }
+            if (exported) {
+                finish(exports, jobGeneration, () -> callback.onExported(file));
+            }
+        });
+    }
+
+    // Cancels the preview render in flight, a running export carries on
+    public synchronized void cancel() {
+        cancelCurrent(previews);
+        previews.generation++;
+    }
+
+    public synchronized void cancelExport() {
+        cancelCurrent(exports);
+        exports.generation++;
+    }
+
+    public synchronized boolean isRendering() {
+        return previews.context != null || exports.context != null;
+    }
+
+    public synchronized boolean isExporting() {
+        return exports.context != null;
+    }
+
+    // Backend of the preview renders submitted from now on
+    public void setBackend(FilmBackend backend) {
+        this.backend = backend;
+    }
+
+    // Whether renders submitted from now on run the per-pixel passes in FilmKernels, see
+    // RenderContext.useNativeKernels
+    public void setNativeKernels(boolean nativeKernels) {
+        this.nativeKernels = nativeKernels;
+    }
+
+    // Receives the stage breakdown of every render submitted from now on, or of none when null
+    public void setMetricsListener(RenderMetrics.Listener listener) {
+        metricsListener = listener;
+    }
+
+    public MatPool getPool() {
+        return pool;
+    }
+
+    // Frees the pooled buffers and kept stage outputs, the next render of any size allocates them again
+    public synchronized void trimMemory() {
+        pool.clear();
+        stageCache.clear();
+        JavaFilmPipeline.trimMemory();
+        pooledWidth = 0;
+        pooledHeight = 0;
+    }
+
+    public synchronized void shutdown() {
+        cancel();
+        cancelExport();
+        executor.shutdownNow();
+        exportExecutor.shutdownNow();
+        loadExecutor.shutdownNow();
+        pool.clear();
+    }
+
+    private RenderContext newContext(Slot slot, long jobGeneration, double renderScale,
+                                     RenderContext.ProgressListener listener) {
+        RenderContext context = new RenderContext(renderScale, pool, (stage, completed, total) ->
+                post(slot, jobGeneration, () -> listener.onStageCompleted(stage, completed, total)));
+        context.setNativeKernels(nativeKernels);
+        context.setStageTracer(SystemStageTracer.INSTANCE);
+        context.setMetricsListener(metricsListener);
+        return context;
+    }
+
+    // Delivers the outcome of a job that is still the current one of its slot
+    private void finish(Slot slot, long jobGeneration, Runnable deliver) {
+        post(slot, jobGeneration, () -> {
+            synchronized (RenderService.this) {
+                slot.context = null;
+                slot.future = null;
+                slot.onCancelled = null;
+            }
+            deliver.run();
+        });
+    }
+
+    private void cancelCurrent(Slot slot) {
+        if (slot.context != null) {
+            slot.context.cancel();
+            // Drop the job if it is still queued, a running one stops at the next stage boundary
+            slot.future.cancel(false);
+            mainHandler.post(slot.onCancelled);
+        }
+        slot.context = null;
+        slot.future = null;
+        slot.onCancelled = null;
+    }
+
+    private void post(Slot slot, long jobGeneration, Runnable runnable) {
+        mainHandler.post(() -> {
+            synchronized (RenderService.this) {
+                if (jobGeneration != slot.generation) {
+                    return;
+                }
+            }
+            runnable.run();
+        });
+    }
+}
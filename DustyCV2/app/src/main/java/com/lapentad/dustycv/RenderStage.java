@@ -0,0 +1,10 @@
+package com.lapentad.dustycv;
+
+// Stages of the film pipeline, in the order applyFilmLook runs them
+public enum RenderStage {
+    COLOR_BALANCE,
+    HALATION,
+    TONE_CURVE,
+    BLOOM,
+    GRAIN
+}
@@ -0,0 +1,50 @@
+package com.lapentad.dustycv;
+
+import android.graphics.Bitmap;
+
+/**
+ * The two bitmaps preview renders alternate between. The front one is on screen, the back one is
+ * what the next render writes into. Swapping in a finished render makes it the front and turns
+ * the previous front into the back, so steady state editing allocates no bitmaps.
+ */
+public class RenderTarget {
+    private Bitmap front;
+    private Bitmap back;
+
+    // Output for the next render, null until a previous front buffer can be reused
+    public synchronized Bitmap getBack() {
+        return back;
+    }
+
+    public synchronized Bitmap getFront() {
+        return front;
+    }
+
+    /**
+     * Makes a finished render the front buffer and returns it. The render normally wrote into the
+     * back buffer, when it had to allocate its own bitmap instead the old back buffer is dropped.
+     * Call it once the returned bitmap is about to replace the previous front on screen.
+     */
+    public synchronized Bitmap swap(Bitmap rendered) {
+        if (rendered != front) {
+            back = front;
+            front = rendered;
+        }
+        return front;
+    }
+
+    /**
+     * Like swap, for when the caller takes the previous front off its hands instead of reusing it:
+     * rendered becomes the front and back the back buffer, possibly null.
+     */
+    public synchronized void replace(Bitmap rendered, Bitmap back) {
+        front = rendered;
+        this.back = back;
+    }
+
+    // Drops both buffers, for when the bitmaps would be too large to keep around
+    public synchronized void clear() {
+        front = null;
+        back = null;
+    }
+}
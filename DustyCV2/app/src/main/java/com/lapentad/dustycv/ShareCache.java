@@ -0,0 +1,51 @@
+package com.lapentad.dustycv;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cache directory images are shared from. Each share writes a new shared_image_ file, and the
+ * ones old enough for the receiving app to be done with them are deleted when the next is made.
+ */
+public class ShareCache {
+    private static final String TAG = "ShareCache";
+    private static final String PREFIX = "shared_image_";
+    // Receiving apps read the file while their share screen is open
+    private static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final File directory;
+
+    public ShareCache(Context context) {
+        directory = new File(context.getCacheDir(), "images");
+    }
+
+    // A new file to share from, with a unique timestamped name and the given extension
+    public File newFile(String extension) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        deleteStale();
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.getDefault()).format(new Date());
+        return new File(directory, PREFIX + timestamp + "." + extension);
+    }
+
+    public void deleteStale() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX));
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - MAX_AGE_MILLIS;
+        for (File file : files) {
+            if (file.lastModified() < cutoff && !file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
+        }
+    }
+}
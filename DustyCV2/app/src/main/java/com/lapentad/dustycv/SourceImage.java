@@ -0,0 +1,74 @@
+package com.lapentad.dustycv;
+
+import android.graphics.Rect;
+import android.net.Uri;
+
+/**
+ * A picked image as it is stored: its URI, full resolution size and the region of it in use after
+ * cropping, in full resolution pixels. Edits work on a smaller decode of it, exports decode it again
+ * at the size they need.
+ */
+public class SourceImage {
+    private final Uri uri;
+    private int fullWidth = 0;
+    private int fullHeight = 0;
+    // Null until the size is known from the image header
+    private Rect crop;
+
+    public SourceImage(Uri uri) {
+        this.uri = uri;
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    public boolean hasSize() {
+        return crop != null;
+    }
+
+    public int getFullWidth() {
+        return fullWidth;
+    }
+
+    public int getFullHeight() {
+        return fullHeight;
+    }
+
+    void setFullSize(int width, int height) {
+        fullWidth = width;
+        fullHeight = height;
+        crop = new Rect(0, 0, width, height);
+    }
+
+    // Size of the region in use, in full resolution pixels
+    public int getWidth() {
+        return crop.width();
+    }
+
+    public int getHeight() {
+        return crop.height();
+    }
+
+    public Rect getCrop() {
+        return new Rect(crop);
+    }
+
+    public boolean isCropped() {
+        return crop.width() != fullWidth || crop.height() != fullHeight;
+    }
+
+    /**
+     * Narrows the region in use to region, given in the pixels of a bitmapWidth x bitmapHeight
+     * bitmap showing the current region.
+     */
+    public void crop(Rect region, int bitmapWidth, int bitmapHeight) {
+        double scaleX = (double) crop.width() / bitmapWidth;
+        double scaleY = (double) crop.height() / bitmapHeight;
+        int left = crop.left + (int) Math.floor(region.left * scaleX);
+        int top = crop.top + (int) Math.floor(region.top * scaleY);
+        int right = Math.min(crop.right, crop.left + (int) Math.ceil(region.right * scaleX));
+        int bottom = Math.min(crop.bottom, crop.top + (int) Math.ceil(region.bottom * scaleY));
+        crop = new Rect(left, top, Math.max(right, left + 1), Math.max(bottom, top + 1));
+    }
+}
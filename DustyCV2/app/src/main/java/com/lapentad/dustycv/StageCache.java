@@ -0,0 +1,103 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.Mat;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The image after each stage of the last whole-frame render of a source, with the parameters
+ * each stage read. A render of the same source restarts from the first stage whose parameters
+ * changed, so moving one slider reruns that stage and the stages after it only. Entries are
+ * copies, the render's own Mats go back to its pool as usual.
+ */
+public class StageCache {
+    private static final class Entry {
+        List<Object> inputs;
+        final Mat image = new Mat();
+        // The lightness plane the stage left behind, empty if it left none
+        final Mat lightness = new Mat();
+    }
+
+    // What the entries were rendered from, the source is any object standing for the input pixels
+    private WeakReference<Object> source = new WeakReference<>(null);
+    private int sourceVersion;
+    private double renderScale;
+    // Entries for the first stages of the pipeline, in order
+    private final List<Entry> entries = new ArrayList<>();
+    private int validEntries = 0;
+    // Only the latest render may store its stages, a cancelled one may still be winding down
+    private long session = 0;
+
+    // Starts a render of version of source, dropping the entries if they were rendered from anything else
+    synchronized long begin(Object source, int version, double renderScale) {
+        if (this.source.get() != source || sourceVersion != version || this.renderScale != renderScale) {
+            this.source = new WeakReference<>(source);
+            sourceVersion = version;
+            this.renderScale = renderScale;
+            validEntries = 0;
+        }
+        return ++session;
+    }
+
+    /**
+     * Restores the output of the longest run of leading stages whose inputs match, into img and
+     * planes. inputs holds the parameters each stage reads, in pipeline order. Returns the number
+     * of stages restored, the render goes on from the stage after them.
+     */
+    synchronized int restore(long session, List<List<Object>> inputs, Mat img, DerivedPlanes planes, MatPool pool) {
+        if (session != this.session) {
+            return 0;
+        }
+        int matching = 0;
+        while (matching < validEntries && matching < inputs.size()
+                && entries.get(matching).inputs.equals(inputs.get(matching))) {
+            matching++;
+        }
+        // Stages after a changed one saw a different image
+        validEntries = matching;
+        if (matching == 0) {
+            return 0;
+        }
+
+        Entry entry = entries.get(matching - 1);
+        entry.image.copyTo(img);
+        planes.imageChanged();
+        if (!entry.lightness.empty()) {
+            Mat lightness = pool.acquire(entry.lightness.size(), entry.lightness.type());
+            entry.lightness.copyTo(lightness);
+            planes.setLightness(lightness);
+        }
+        return matching;
+    }
+
+    // Keeps the output of the stage at index, lightness may be null
+    synchronized void store(long session, int index, List<Object> inputs, Mat img, Mat lightness) {
+        if (session != this.session || index > validEntries) {
+            return;
+        }
+        while (entries.size() <= index) {
+            entries.add(new Entry());
+        }
+        Entry entry = entries.get(index);
+        entry.inputs = inputs;
+        img.copyTo(entry.image);
+        if (lightness != null) {
+            lightness.copyTo(entry.lightness);
+        } else {
+            entry.lightness.release();
+        }
+        validEntries = index + 1;
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : entries) {
+            entry.image.release();
+            entry.lightness.release();
+        }
+        entries.clear();
+        validEntries = 0;
+        source = new WeakReference<>(null);
+    }
+}
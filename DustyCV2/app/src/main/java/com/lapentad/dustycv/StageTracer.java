@@ -0,0 +1,40 @@
+package com.lapentad.dustycv;
+
+/**
+ * Marks the stages of a render for the platform's tracer and reads its thread CPU clock and
+ * native heap counter, so the pipeline itself stays free of Android. See SystemStageTracer for
+ * android.os.Trace.
+ */
+public interface StageTracer {
+    // No sections, no clock and no heap counter, what renders get unless a tracer is set
+    StageTracer NONE = new StageTracer() {
+        @Override
+        public void beginSection(RenderStage stage) {
+        }
+
+        @Override
+        public void endSection() {
+        }
+
+        @Override
+        public long threadCpuNanos() {
+            return 0;
+        }
+
+        @Override
+        public long nativeHeapBytes() {
+            return 0;
+        }
+    };
+
+    // Called on the rendering thread as a stage starts, endSection follows on the same thread
+    void beginSection(RenderStage stage);
+
+    void endSection();
+
+    // CPU time the calling thread has used so far
+    long threadCpuNanos();
+
+    // Bytes allocated on the process's native heap, where OpenCV keeps its Mats and temporaries
+    long nativeHeapBytes();
+}
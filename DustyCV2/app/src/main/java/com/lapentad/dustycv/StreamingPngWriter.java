@@ -0,0 +1,120 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes an 8-bit RGBA PNG a band of rows at a time. Rows are filtered and compressed as they
+ * arrive and leave in IDAT chunks, so the image is never held whole.
+ */
+public class StreamingPngWriter {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FILTER_SUB = 1;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final DeflaterOutputStream compressed;
+    private final byte[] row;
+    private final byte[] filtered;
+    private int rowsWritten = 0;
+
+    // Writes the PNG header to out, which stays open after finish
+    public StreamingPngWriter(OutputStream out, int width, int height) throws IOException {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        row = new byte[width * 4];
+        filtered = new byte[row.length + 1];
+
+        out.write(SIGNATURE);
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(width).putInt(height);
+        // 8 bits per channel, RGBA, deflate, adaptive filtering, no interlace
+        header.put((byte) 8).put((byte) 6).put((byte) 0).put((byte) 0).put((byte) 0);
+        writeChunk("IHDR", header.array(), 0, header.capacity());
+
+        // Each buffer the deflater fills goes out as one IDAT chunk
+        compressed = new DeflaterOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                writeChunk("IDAT", data, offset, length);
+            }
+        }, deflater, CHUNK_SIZE);
+    }
+
+    // Appends the rows of a CV_8UC4 Mat holding premultiplied RGBA, as Android bitmaps store it
+    public void writeRows(Mat band) throws IOException {
+        if (band.type() != CvType.CV_8UC4 || band.cols() != width) {
+            throw new IllegalArgumentException("Expected CV_8UC4 rows " + width + " pixels wide");
+        }
+        if (rowsWritten + band.rows() > height) {
+            throw new IllegalStateException("More rows than the " + height + " in the header");
+        }
+        for (int y = 0; y < band.rows(); y++) {
+            band.get(y, 0, row);
+            unpremultiply(row);
+            // Sub filter, each byte as the difference to the same channel of the pixel on its left
+            filtered[0] = FILTER_SUB;
+            System.arraycopy(row, 0, filtered, 1, 4);
+            for (int i = 4; i < row.length; i++) {
+                filtered[i + 1] = (byte) (row[i] - row[i - 4]);
+            }
+            compressed.write(filtered);
+        }
+        rowsWritten += band.rows();
+    }
+
+    // Flushes the compressed data and ends the PNG, once every row has been written
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows written");
+        }
+        try {
+            compressed.finish();
+            writeChunk("IEND", new byte[0], 0, 0);
+            out.flush();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void unpremultiply(byte[] pixels) {
+        for (int i = 0; i < pixels.length; i += 4) {
+            int alpha = pixels[i + 3] & 0xFF;
+            if (alpha == 255 || alpha == 0) {
+                continue;
+            }
+            for (int c = i; c < i + 3; c++) {
+                pixels[c] = (byte) Math.min(255, ((pixels[c] & 0xFF) * 255 + alpha / 2) / alpha);
+            }
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int offset, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+
+        out.write(ByteBuffer.allocate(4).putInt(length).array());
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+    }
+}
@@ -0,0 +1,40 @@
+package com.lapentad.dustycv;
+
+import android.os.Debug;
+import android.os.Trace;
+
+// Stages as android.os.Trace sections, which Perfetto and systrace show on the rendering threads
+final class SystemStageTracer implements StageTracer {
+    static final SystemStageTracer INSTANCE = new SystemStageTracer();
+
+    private static final String[] SECTIONS = new String[RenderStage.values().length];
+
+    static {
+        for (RenderStage stage : RenderStage.values()) {
+            SECTIONS[stage.ordinal()] = "DustyCV " + stage;
+        }
+    }
+
+    private SystemStageTracer() {
+    }
+
+    @Override
+    public void beginSection(RenderStage stage) {
+        Trace.beginSection(SECTIONS[stage.ordinal()]);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+
+    @Override
+    public long threadCpuNanos() {
+        return Math.max(0, Debug.threadCpuTimeNanos());
+    }
+
+    @Override
+    public long nativeHeapBytes() {
+        return Debug.getNativeHeapAllocatedSize();
+    }
+}
@@ -0,0 +1,183 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Renders an image in overlapping tiles so that pipeline temporaries scale with the tile size
+ * rather than the image size. Each tile is read with a halo wide enough for every blur, dilation
+ * and edge detection in the pipeline, and only its core is written out, so tiles stitch without
+ * seams. Whole-frame statistics (brightness and NORM_MINMAX ranges) are gathered first in
+ * statistics passes that stop each tile as soon as it has reported the statistic being collected.
+ */
+public class TiledRenderer {
+    public static final int DEFAULT_TILE_SIZE = 1024;
+
+    public interface TileSource {
+        int getWidth();
+
+        int getHeight();
+
+        // Returns a BGR or RGBA Mat holding the given region of the source image, the renderer
+        // hands it to the context's pool once the tile is done
+        Mat read(Rect region);
+    }
+
+    public interface TileSink {
+        // Receives the rendered core of a tile, may be called from several threads at once
+        void write(Rect region, Mat tile);
+
+        // With renderBands, called on the rendering thread once every tile of the band of rows
+        // from y to y + height has been written. Bands complete from top to bottom.
+        default void bandComplete(int y, int height) {
+        }
+    }
+
+    private static ExecutorService executor;
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "tile-renderer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    // Renders a whole BGR or RGBA Mat tile by tile into a Mat borrowed from the context's pool
+    public static Mat render(Mat src, EffectParameters parameters, RenderContext context, int tileSize) {
+        MatPool pool = context.getPool();
+        Mat dst = pool.acquire(src.size(), src.type());
+        TileSource source = new TileSource() {
+            @Override
+            public int getWidth() {
+                return src.cols();
+            }
+
+            @Override
+            public int getHeight() {
+                return src.rows();
+            }
+
+            @Override
+            public Mat read(Rect region) {
+                Mat tile = pool.acquire(region.height, region.width, src.type());
+                src.submat(region).copyTo(tile);
+                return tile;
+            }
+        };
+        render(source, (region, tile) -> tile.copyTo(dst.submat(region)), parameters, context, tileSize);
+        return dst;
+    }
+
+    public static void render(TileSource source, TileSink sink, EffectParameters parameters,
+                              RenderContext context, int tileSize) {
+        render(source, sink, parameters, context, tileSize, false);
+    }
+
+    // Like render, but finishes one band of tiles before starting the next, so the sink can write
+    // the image out in row order while holding only one band of it
+    public static void renderBands(TileSource source, TileSink sink, EffectParameters parameters,
+                                   RenderContext context, int tileSize) {
+        render(source, sink, parameters, context, tileSize, true);
+    }
+
+    private static void render(TileSource source, TileSink sink, EffectParameters parameters,
+                               RenderContext context, int tileSize, boolean banded) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int halo = FilmPipeline.getHaloMargin(parameters, context);
+
+        List<Rect> cores = new ArrayList<>();
+        for (int y = 0; y < height; y += tileSize) {
+            for (int x = 0; x < width; x += tileSize) {
+                cores.add(new Rect(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y)));
+            }
+        }
+
+        FrameStats stats = new FrameStats(width, height);
+        boolean collected = true;
+        while (!stats.isComplete() && collected) {
+            collected = runPass(source, null, cores, halo, parameters, context, stats);
+            stats.commitPass();
+        }
+
+        context.setTileCount(cores.size());
+        if (!banded) {
+            runPass(source, sink, cores, halo, parameters, context, stats);
+            return;
+        }
+        // Cores are listed row by row, each band is a run of them
+        int tilesPerBand = (width + tileSize - 1) / tileSize;
+        for (int first = 0; first < cores.size(); first += tilesPerBand) {
+            List<Rect> band = cores.subList(first, first + tilesPerBand);
+            runPass(source, sink, band, halo, parameters, context, stats);
+            sink.bandComplete(band.get(0).y, band.get(0).height);
+        }
+    }
+
+    // Returns whether any tile stopped early to report a statistic
+    private static boolean runPass(TileSource source, TileSink sink, List<Rect> cores, int halo,
+                                   EffectParameters parameters, RenderContext context, FrameStats stats) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        AtomicBoolean collected = new AtomicBoolean(false);
+        List<Future<?>> futures = new ArrayList<>();
+        for (Rect core : cores) {
+            futures.add(getExecutor().submit(() -> {
+                int x0 = Math.max(0, core.x - halo);
+                int y0 = Math.max(0, core.y - halo);
+                int x1 = Math.min(width, core.x + core.width + halo);
+                int y1 = Math.min(height, core.y + core.height + halo);
+                Rect region = new Rect(x0, y0, x1 - x0, y1 - y0);
+                Rect coreInTile = new Rect(core.x - x0, core.y - y0, core.width, core.height);
+
+                Mat tile = source.read(region);
+                try {
+                    FilmPipeline.applyStages(tile, parameters, context.forTile(stats, region, coreInTile));
+                    if (sink != null) {
+                        sink.write(core, tile.submat(coreInTile));
+                    }
+                } catch (RenderContext.StatisticCollected e) {
+                    // This tile has contributed to the statistic of the current pass
+                    collected.set(true);
+                } finally {
+                    context.getPool().release(tile);
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return collected.get();
+        } catch (ExecutionException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            throw new RuntimeException("Tile render failed", e.getCause());
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Tile render interrupted");
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The tone curve stage baked into a 3D colour LUT. The stage is a pure per-pixel function of the
+ * BGR colour once the L range of the image is known, so it is sampled on a grid once per
+ * parameter set and applied with tetrahedral interpolation in a single pass. The LUT also carries
+ * the Lab L of each output colour, so the pass can write the lightness of its result on the side.
+ * The result is within a level of the per-pixel maths on average, but up to 36 levels off next to
+ * the knees of the film curve, see ToneCurveLutTest.
+ */
+public class ToneCurveLut {
+    // Grid step of 3 puts every node on an exact 8-bit value, 86 nodes per axis
+    private static final int STEP = 3;
+    private static final int NODES = 255 / STEP + 1;
+    private static final int CACHE_SIZE = 4;
+
+    // Per 8-bit input value: offset of the lower grid node along the axis and the distance to it
+    private static final int[] NODE_INDEX = new int[256];
+    private static final int[] NODE_FRACTION = new int[256];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            int node = Math.min(v / STEP, NODES - 2);
+            NODE_INDEX[v] = node;
+            NODE_FRACTION[v] = v - node * STEP;
+        }
+    }
+
+    private static final Map<String, ToneCurveLut> cache = new LinkedHashMap<String, ToneCurveLut>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ToneCurveLut> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // Output B, G, R and L for every grid node, node ((b * NODES) + g) * NODES + r at 4 times its index
+    private final byte[] table;
+
+    private ToneCurveLut(byte[] table) {
+        this.table = table;
+    }
+
+    public static ToneCurveLut get(double strength, EffectParameters parameters, double lMin, double lMax) {
+        return get(strength, parameters, lMin, lMax, false);
+    }
+
+    // Like get, but built with the colour conversions of LabConversion rather than OpenCV's, so it
+    // needs no native code. Within a few levels of the OpenCV table.
+    static ToneCurveLut getPortable(double strength, EffectParameters parameters, double lMin, double lMax) {
+        return get(strength, parameters, lMin, lMax, true);
+    }
+
+    private static ToneCurveLut get(double strength, EffectParameters parameters, double lMin, double lMax,
+                                    boolean portable) {
+        String key = parameters.getFilmType() + "/" + parameters.getFilmContrast() + "/" + parameters.getRedTint()
+                + "/" + parameters.getGreenTint() + "/" + parameters.getBlueTint() + "/" + strength
+                + "/" + lMin + "/" + lMax + (portable ? "/portable" : "");
+        synchronized (cache) {
+            ToneCurveLut lut = cache.get(key);
+            if (lut == null) {
+                lut = build(strength, parameters, lMin, lMax, portable);
+                cache.put(key, lut);
+            }
+            return lut;
+        }
+    }
+
+    private static ToneCurveLut build(double strength, EffectParameters parameters, double lMin, double lMax,
+                                      boolean portable) {
+        int size = NODES * NODES * NODES;
+        byte[] grid = new byte[size * 3];
+        int i = 0;
+        for (int b = 0; b < NODES; b++) {
+            for (int g = 0; g < NODES; g++) {
+                for (int r = 0; r < NODES; r++) {
+                    grid[i++] = (byte) (b * STEP);
+                    grid[i++] = (byte) (g * STEP);
+                    grid[i++] = (byte) (r * STEP);
+                }
+            }
+        }
+
+        convert(grid, Imgproc.COLOR_BGR2Lab, portable);
+
+        byte[] lLut = FilmPipeline.getLut(strength, parameters.getFilmContrast());
+
+        // Same maths as the per-image tone curve: L normalised over the image range drives the
+        // warm shift of a and b, and the film curve is applied to L
+        float aAdjust = (parameters.getRedTint() - 1.0f) * 10.0f;
+        float bAdjust = (1.0f - parameters.getBlueTint()) * 10.0f;
+        double lScale = lMax - lMin > 0 ? 1.0 / (lMax - lMin) : 0.0;
+        for (i = 0; i < grid.length; i += 3) {
+            int l = grid[i] & 0xFF;
+            float lNorm = (float) (l * lScale - lMin * lScale);
+            float a = (grid[i + 1] & 0xFF) + lNorm * aAdjust;
+            float bb = (grid[i + 2] & 0xFF) + lNorm * bAdjust;
+            grid[i] = lLut[l];
+            grid[i + 1] = (byte) clampRound(a);
+            grid[i + 2] = (byte) clampRound(bb);
+        }
+
+        convert(grid, Imgproc.COLOR_Lab2BGR, portable);
+
+        // Lightness of the output colours, for the stages after the tone curve
+        byte[] outputLab = grid.clone();
+        convert(outputLab, Imgproc.COLOR_BGR2Lab, portable);
+
+        byte[] table = new byte[size * 4];
+        for (int node = 0; node < size; node++) {
+            table[node * 4] = grid[node * 3];
+            table[node * 4 + 1] = grid[node * 3 + 1];
+            table[node * 4 + 2] = grid[node * 3 + 2];
+            table[node * 4 + 3] = outputLab[node * 3];
+        }
+        return new ToneCurveLut(table);
+    }
+
+    // Converts packed colour triplets in place between BGR and Lab, with OpenCV unless portable
+    private static void convert(byte[] triplets, int code, boolean portable) {
+        if (portable) {
+            if (code == Imgproc.COLOR_BGR2Lab) {
+                LabConversion.bgrToLab(triplets);
+            } else {
+                LabConversion.labToBgr(triplets);
+            }
+            return;
+        }
+        Mat mat = new Mat(1, triplets.length / 3, CvType.CV_8UC3);
+        mat.put(0, 0, triplets);
+        Imgproc.cvtColor(mat, mat, code);
+        mat.get(0, 0, triplets);
+        mat.release();
+    }
+
+    private static int clampRound(float v) {
+        return (int) Math.rint(Math.min(255f, Math.max(0f, v)));
+    }
+
+    // Applies the LUT in place to a BGR or RGBA image, and writes the Lab L of the result to
+    // lightness unless it is null
+    public void apply(Mat img, Mat lightness) {
+        int cols = img.cols();
+        int channels = img.channels();
+        int blue = DerivedPlanes.blueIndex(img);
+        int red = DerivedPlanes.redIndex(img);
+        int rowLength = cols * channels;
+        int bandRows = Math.max(1, (1 << 20) / rowLength);
+        byte[] buffer = new byte[bandRows * rowLength];
+        byte[] lightnessBuffer = new byte[bandRows * cols];
+        int[] out = new int[4];
+        for (int y = 0; y < img.rows(); y += bandRows) {
+            int rows = Math.min(bandRows, img.rows() - y);
+            int length = rows * rowLength;
+            byte[] band = length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+            byte[] lightnessBand = rows == bandRows ? lightnessBuffer : new byte[rows * cols];
+            img.get(y, 0, band);
+            for (int p = 0, i = 0; p < length; p += channels, i++) {
+                lookup(band[p + blue] & 0xFF, band[p + 1] & 0xFF, band[p + red] & 0xFF, out);
+                band[p + blue] = (byte) out[0];
+                band[p + 1] = (byte) out[1];
+                band[p + red] = (byte) out[2];
+                lightnessBand[i] = (byte) out[3];
+            }
+            img.put(y, 0, band);
+            if (lightness != null) {
+                lightness.put(y, 0, lightnessBand);
+            }
+        }
+    }
+
+    // Like apply, in one native pass over the image
+    void applyNative(Mat img, Mat lightness) {
+        FilmKernels.applyToneCurve(img, DerivedPlanes.blueIndex(img), table, NODES, STEP, lightness);
+    }
+
+    // Tetrahedral interpolation between the four grid nodes enclosing the colour
+    void lookup(int b, int g, int r, int[] out) {
+        int fb = NODE_FRACTION[b];
+        int fg = NODE_FRACTION[g];
+        int fr = NODE_FRACTION[r];
+        int base = ((NODE_INDEX[b] * NODES + NODE_INDEX[g]) * NODES + NODE_INDEX[r]) * 4;
+        int db = NODES * NODES * 4;
+        int dg = NODES * 4;
+        int dr = 4;
+
+        // Walk from the base node to the opposite corner along the axes in order of decreasing fraction
+        int d1, d2, w0, w1, w2, w3;
+        if (fb >= fg) {
+            if (fg >= fr) {
+                d1 = db; d2 = db + dg; w0 = STEP - fb; w1 = fb - fg; w2 = fg - fr; w3 = fr;
+            } else if (fb >= fr) {
+                d1 = db; d2 = db + dr; w0 = STEP - fb; w1 = fb - fr; w2 = fr - fg; w3 = fg;
+            } else {
+                d1 = dr; d2 = dr + db; w0 = STEP - fr; w1 = fr - fb; w2 = fb - fg; w3 = fg;
+            }
+        } else {
+            if (fb >= fr) {
+                d1 = dg; d2 = dg + db; w0 = STEP - fg; w1 = fg - fb; w2 = fb - fr; w3 = fr;
+            } else if (fg >= fr) {
+                d1 = dg; d2 = dg + dr; w0 = STEP - fg; w1 = fg - fr; w2 = fr - fb; w3 = fb;
+            } else {
+                d1 = dr; d2 = dr + dg; w0 = STEP - fr; w1 = fr - fg; w2 = fg - fb; w3 = fb;
+            }
+        }
+        int far = db + dg + dr;
+        for (int c = 0; c < 4; c++) {
+            int v = w0 * (table[base + c] & 0xFF)
+                    + w1 * (table[base + d1 + c] & 0xFF)
+                    + w2 * (table[base + d2 + c] & 0xFF)
+                    + w3 * (table[base + far + c] & 0xFF);
+            out[c] = (v + STEP / 2) / STEP;
+        }
+    }
+}
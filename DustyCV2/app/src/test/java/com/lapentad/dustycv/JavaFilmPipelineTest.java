@@ -0,0 +1,174 @@
+package com.lapentad.dustycv;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Renders with the Java pipeline on the development machine, without the OpenCV native library.
+ * How close it comes to the OpenCV pipeline is checked in the instrumented FilmBackendTest.
+ */
+public class JavaFilmPipelineTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    @Test
+    public void sameInputRendersSamePixels() {
+        EffectParameters parameters = new EffectParameters();
+        parameters.setFilmType(EffectParameters.FilmType.KODAK_500T);
+
+        int[] first = testImage();
+        JavaFilmPipeline.render(first, WIDTH, HEIGHT, parameters, new RenderContext());
+        int[] second = testImage();
+        JavaFilmPipeline.render(second, WIDTH, HEIGHT, parameters, new RenderContext());
+
+        assertArrayEquals(first, second);
+        assertFalse(Arrays.equals(testImage(), first));
+    }
+
+    @Test
+    public void alphaIsLeftUntouched() {
+        int[] pixels = testImage();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (pixels[i] & 0xFFFFFF) | ((i % 256) << 24);
+        }
+        JavaFilmPipeline.render(pixels, WIDTH, HEIGHT, new EffectParameters(), new RenderContext());
+
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals(i % 256, pixels[i] >>> 24);
+        }
+    }
+
+    @Test
+    public void grainSeedChangesGrainOnly() {
+        EffectParameters parameters = new EffectParameters();
+        int[] first = testImage();
+        JavaFilmPipeline.render(first, WIDTH, HEIGHT, parameters, new RenderContext());
+
+        parameters.setGrainSeed(parameters.getGrainSeed() + 1);
+        int[] second = testImage();
+        JavaFilmPipeline.render(second, WIDTH, HEIGHT, parameters, new RenderContext());
+
+        long total = 0;
+        for (int i = 0; i < first.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                total += Math.abs((first[i] >> shift & 0xFF) - (second[i] >> shift & 0xFF));
+            }
+        }
+        double mean = total / (first.length * 3.0);
+        assertTrue("mean difference " + mean, mean > 0 && mean < 10);
+    }
+
+    @Test
+    public void cancelledRenderThrows() {
+        RenderContext context = new RenderContext();
+        context.cancel();
+        try {
+            JavaFilmPipeline.render(testImage(), WIDTH, HEIGHT, new EffectParameters(), context);
+            fail("Cancelled render completed");
+        } catch (CancellationException expected) {
+            // The next render of the same size reuses the planes this one left behind
+            int[] pixels = testImage();
+            JavaFilmPipeline.render(pixels, WIDTH, HEIGHT, new EffectParameters(), new RenderContext());
+        }
+    }
+
+    @Test
+    public void metricsListenerGetsEachRenderOnce() {
+        List<RenderMetrics> measured = new ArrayList<>();
+        RenderContext context = new RenderContext();
+        context.setMetricsListener(measured::add);
+        JavaFilmPipeline.render(testImage(), WIDTH, HEIGHT, new EffectParameters(), context);
+
+        assertEquals(1, measured.size());
+        RenderMetrics metrics = measured.get(0);
+        assertEquals(WIDTH, metrics.getWidth());
+        assertEquals(HEIGHT, metrics.getHeight());
+        for (RenderStage stage : new RenderStage[]{
+                RenderStage.COLOR_BALANCE, RenderStage.HALATION, RenderStage.TONE_CURVE, RenderStage.BLOOM}) {
+            assertTrue(stage + " wall time", metrics.getWallNanos(stage) > 0);
+        }
+        // The Java pipeline blends the grain in its bloom pass
+        assertEquals(0, metrics.getWallNanos(RenderStage.GRAIN));
+        assertEquals(metrics.getTotalWallNanos(), Arrays.stream(RenderStage.values())
+                .mapToLong(metrics::getWallNanos).sum());
+    }
+
+    @Test
+    public void traceSectionsCloseWhenCancelled() {
+        List<String> sections = new ArrayList<>();
+        StageTracer tracer = new StageTracer() {
+            @Override
+            public void beginSection(RenderStage stage) {
+                sections.add("begin " + stage);
+            }
+
+            @Override
+            public void endSection() {
+                sections.add("end");
+            }
+
+            @Override
+            public long threadCpuNanos() {
+                return 0;
+            }
+
+            @Override
+            public long nativeHeapBytes() {
+                return 0;
+            }
+        };
+        RenderContext[] holder = new RenderContext[1];
+        holder[0] = new RenderContext(1.0, new MatPool(), (stage, completed, total) -> {
+            if (stage == RenderStage.HALATION) {
+                holder[0].cancel();
+            }
+        });
+        holder[0].setStageTracer(tracer);
+        try {
+            JavaFilmPipeline.render(testImage(), WIDTH, HEIGHT, new EffectParameters(), holder[0]);
+            fail("Cancelled render completed");
+        } catch (CancellationException expected) {
+            assertEquals(Arrays.asList("begin COLOR_BALANCE", "end", "begin HALATION", "end"), sections);
+        }
+    }
+
+    // Opaque ARGB gradient with noise and two bright discs, so the masks have edges and highlights
+    private static int[] testImage() {
+        Random random = new Random(3);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = y * 255 / HEIGHT;
+                int g = 120;
+                int b = 255 - r;
+                if (disc(x, y, 80, 70, 25) || disc(x, y, 230, 170, 35)) {
+                    r = 255;
+                    g = 250;
+                    b = 240;
+                } else {
+                    int noise = (int) Math.round(random.nextGaussian() * 25);
+                    r = clamp(r + noise);
+                    g = clamp(g + noise);
+                    b = clamp(b + noise);
+                }
+                pixels[y * WIDTH + x] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static boolean disc(int x, int y, int cx, int cy, int radius) {
+        return (x - cx) * (x - cx) + (y - cy) * (y - cy) <= radius * radius;
+    }
+
+    private static int clamp(int v) {
+        return Math.max(0, Math.min(255, v));
+    }
+}
@@ -0,0 +1,85 @@
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+// The film pipeline has no Android dependencies, so it is compiled straight from the app's sources
+// against the desktop OpenCV bindings
+sourceSets {
+    main {
+        java {
+            setSrcDirs(listOf("../app/src/main/java", "../filmkernels/src/main/java"))
+            include(
+                "com/lapentad/dustycv/DerivedPlanes.java",
+                "com/lapentad/dustycv/EffectParameters.java",
+                "com/lapentad/dustycv/FilmKernels.java",
+                "com/lapentad/dustycv/FilmPipeline.java",
+                "com/lapentad/dustycv/FrameStats.java",
+                "com/lapentad/dustycv/GlowBlur.java",
+                "com/lapentad/dustycv/GrainTextureCache.java",
+                "com/lapentad/dustycv/JavaFilmPipeline.java",
+                "com/lapentad/dustycv/LabConversion.java",
+                "com/lapentad/dustycv/MatPool.java",
+                "com/lapentad/dustycv/RenderContext.java",
+                "com/lapentad/dustycv/RenderMetrics.java",
+                "com/lapentad/dustycv/RenderStage.java",
+                "com/lapentad/dustycv/StageCache.java",
+                "com/lapentad/dustycv/StageTracer.java",
+                "com/lapentad/dustycv/TiledRenderer.java",
+                "com/lapentad/dustycv/ToneCurveLut.java",
+            )
+        }
+    }
+    test {
+        java {
+            // The app's shared test image and comparisons, without the instrumented tests beside them
+            val androidTests = file("../app/src/androidTest/java")
+            srcDir(androidTests)
+            exclude { !it.isDirectory && it.file.startsWith(androidTests) && it.name != "TestImages.java" }
+        }
+    }
+}
+
+dependencies {
+    implementation(libs.opencv.desktop)
+    testImplementation(libs.junit)
+}
+
+// Host build of the native kernels, which the benchmarks and tests load from here
+val filmKernelsDir = layout.buildDirectory.dir("filmkernels")
+val configureFilmKernels by tasks.registering(Exec::class) {
+    inputs.file("../filmkernels/src/main/cpp/CMakeLists.txt")
+    commandLine("cmake", "-S", file("../filmkernels/src/main/cpp").path, "-B", filmKernelsDir.get().asFile.path,
+        "-DCMAKE_BUILD_TYPE=Release")
+}
+val buildFilmKernels by tasks.registering(Exec::class) {
+    dependsOn(configureFilmKernels)
+    inputs.dir("../filmkernels/src/main/cpp")
+    outputs.dir(filmKernelsDir)
+    commandLine("cmake", "--build", filmKernelsDir.get().asFile.path)
+}
+val filmKernelsLibraryPath = "-Djava.library.path=" + filmKernelsDir.get().asFile.path
+
+tasks.test {
+    dependsOn(buildFilmKernels)
+    jvmArgs(filmKernelsLibraryPath)
+}
+
+tasks.named("jmh") {
+    dependsOn(buildFilmKernels)
+}
+
+// ./gradlew :benchmark:jmh, or narrow it down with -Pjmh.includes=<regex>
+jmh {
+    jmhVersion = libs.versions.jmh
+    // Java heap allocated per frame, the native buffers are reported by the benchmark itself
+    profilers = listOf("gc")
+    jvmArgsAppend = listOf(filmKernelsLibraryPath)
+    resultFormat = "JSON"
+    providers.gradleProperty("jmh.includes").orNull?.let { includes = listOf(it) }
+}
@@ -0,0 +1,115 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the OpenCV pipeline, with and without the native kernels, and the Java pipeline on the
+ * same frame, with the blur modes RenderService uses for previews. Reading and writing the bitmap
+ * is left out, every backend pays for a copy.
+ * Run it with -Djava.util.concurrent.ForkJoinPool.common.parallelism to see how the Java
+ * pipeline's row bands scale with cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FilmBackendBenchmark {
+    static {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    // Preview sizes up to the largest frame the app renders without tiling
+    @Param({"0.5", "2", "8", "12"})
+    public double megapixels;
+
+    @Param({"NEUTRAL", "KODAK_500T"})
+    public EffectParameters.FilmType filmType;
+
+    private Mat frame;
+    private int[] framePixels;
+    private EffectParameters parameters;
+    private MatPool pool;
+
+    // The copies of the frame the current call works on
+    private Mat img;
+    private int[] pixels;
+
+    @Setup(Level.Trial)
+    public void createFrame() {
+        frame = FilmPipelineBenchmark.createFrame(megapixels);
+        parameters = new EffectParameters();
+        parameters.setFilmType(filmType);
+        pool = new MatPool();
+
+        // RGBA bytes to the ARGB ints Bitmap.getPixels gives
+        byte[] rgba = new byte[(int) frame.total() * 4];
+        frame.get(0, 0, rgba);
+        framePixels = new int[(int) frame.total()];
+        for (int i = 0; i < framePixels.length; i++) {
+            framePixels[i] = (rgba[i * 4 + 3] & 0xFF) << 24 | (rgba[i * 4] & 0xFF) << 16
+                    | (rgba[i * 4 + 1] & 0xFF) << 8 | (rgba[i * 4 + 2] & 0xFF);
+        }
+        pixels = new int[framePixels.length];
+    }
+
+    @Setup(Level.Invocation)
+    public void copyFrame() {
+        img = pool.acquire(frame.size(), frame.type());
+        frame.copyTo(img);
+        System.arraycopy(framePixels, 0, pixels, 0, pixels.length);
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseFrame() {
+        pool.release(img);
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        pool.clear();
+        frame.release();
+        JavaFilmPipeline.trimMemory();
+    }
+
+    @Benchmark
+    public void openCv() {
+        img = FilmPipeline.render(img, parameters, previewContext(new RenderContext(1.0, pool, null)));
+    }
+
+    @Benchmark
+    public void nativeKernels() {
+        RenderContext context = previewContext(new RenderContext(1.0, pool, null));
+        context.setNativeKernels(true);
+        img = FilmPipeline.render(img, parameters, context);
+    }
+
+    @Benchmark
+    public int[] java() {
+        JavaFilmPipeline.render(pixels, frame.cols(), frame.rows(), parameters,
+                previewContext(new RenderContext()));
+        return pixels;
+    }
+
+    private static RenderContext previewContext(RenderContext context) {
+        context.setBlurMode(RenderStage.HALATION, GlowBlur.Mode.PYRAMID);
+        context.setBlurMode(RenderStage.BLOOM, GlowBlur.Mode.PYRAMID);
+        return context;
+    }
+}
@@ -0,0 +1,158 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the whole film look and each of its stages on RGBA frames, as the app renders bitmaps, for
+ * every film stock. Each call gets a fresh copy of the frame. Buffers come from one pool per run
+ * like in the app, so the first frame pays for allocating them. The native bytes that pool ends up
+ * holding are printed when the run ends. Temporaries OpenCV allocates internally are not counted.
+ * <p>
+ * The stages other than the colour balance run on the synthetic frame, not on the output of the
+ * stages before them, which is close enough for timing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FilmPipelineBenchmark {
+    static {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Param({"2", "12", "24", "48"})
+    public int megapixels;
+
+    @Param({"NEUTRAL", "KODAK_50D", "KODAK_200T", "KODAK_250D", "KODAK_500T"})
+    public EffectParameters.FilmType filmType;
+
+    // The per-pixel passes in FilmKernels, built for the host by the buildFilmKernels task
+    @Param({"false", "true"})
+    public boolean nativeKernels;
+
+    private Mat frame;
+    private EffectParameters parameters;
+    private MatPool pool;
+    private RenderContext context;
+    private double strength;
+
+    // The copy of the frame the current call works on
+    private Mat img;
+    private DerivedPlanes planes;
+
+    @Setup(Level.Trial)
+    public void createFrame() {
+        frame = createFrame(megapixels);
+        parameters = new EffectParameters();
+        parameters.setFilmType(filmType);
+        pool = new MatPool();
+        context = new RenderContext(1.0, pool, null);
+        context.setNativeKernels(nativeKernels);
+
+        DerivedPlanes framePlanes = new DerivedPlanes(frame, pool);
+        strength = FilmPipeline.getEffectStrength(FilmPipeline.getImageBrightness(framePlanes, context));
+        framePlanes.release();
+    }
+
+    @Setup(Level.Invocation)
+    public void copyFrame() {
+        img = pool.acquire(frame.size(), frame.type());
+        frame.copyTo(img);
+        planes = new DerivedPlanes(img, pool);
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseFrame() {
+        planes.release();
+        pool.release(img);
+    }
+
+    @TearDown(Level.Trial)
+    public void report(BenchmarkParams params) {
+        System.out.printf(Locale.US, "%n%s %d MP %s native %b: %.1f MB of native buffers per frame%n",
+                params.getBenchmark(), megapixels, filmType, nativeKernels, pool.getAllocatedBytes() / 1e6);
+        pool.clear();
+        frame.release();
+    }
+
+    // What ImageProcessor.applyFilmLook does between reading and writing the bitmap, tiled above 16 MP
+    @Benchmark
+    public void filmLook() {
+        img = FilmPipeline.render(img, parameters, context);
+    }
+
+    @Benchmark
+    public void colorBalance() {
+        FilmPipeline.applyFilmColorBalance(img, parameters, planes, context);
+    }
+
+    @Benchmark
+    public void halation() {
+        FilmPipeline.addHalation(img, strength, parameters, planes, context);
+    }
+
+    @Benchmark
+    public void toneCurve() {
+        FilmPipeline.applyToneCurve(img, strength, parameters, planes, context);
+    }
+
+    @Benchmark
+    public void bloom() {
+        FilmPipeline.addSoftBloom(img, strength, parameters, planes, context);
+    }
+
+    @Benchmark
+    public void grain() {
+        double grainStrength = strength * parameters.getFilmGrainMultiplier() * 4.0;
+        FilmPipeline.addGrain(img, FilmPipeline.prepareGrain(img.size(), img.total(), grainStrength, parameters,
+                context), context);
+    }
+
+    // A 4:3 RGBA frame of soft noise with bright discs on it, so the masks have edges and highlights
+    static Mat createFrame(double megapixels) {
+        int cols = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        int rows = cols * 3 / 4;
+        Mat frame = new Mat(rows, cols, CvType.CV_8UC4);
+        Core.setRNGSeed(42);
+        Core.randu(frame, 0, 256);
+        Imgproc.GaussianBlur(frame, frame, new Size(31, 31), 0);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            Point center = new Point(random.nextInt(cols), random.nextInt(rows));
+            int radius = 5 + random.nextInt(cols / 50);
+            Imgproc.circle(frame, center, radius, new Scalar(255, 248, 235, 255), -1);
+        }
+
+        Mat alpha = new Mat(rows, cols, CvType.CV_8UC1, Scalar.all(255));
+        Core.insertChannel(alpha, frame, 3);
+        alpha.release();
+        return frame;
+    }
+}
@@ -0,0 +1,146 @@
+package com.lapentad.dustycv;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the native passes against the Java and OpenCV code they stand in for, on the host build
+ * of the library. The app's FilmKernelsTest does the same on device ABIs.
+ */
+public class FilmKernelsTest {
+    @BeforeClass
+    public static void loadLibraries() {
+        nu.pattern.OpenCV.loadLocally();
+        assertTrue(FilmKernels.isAvailable());
+    }
+
+    @Test
+    public void colorBalanceMatchesCoreMultiply() {
+        EffectParameters parameters = new EffectParameters();
+        parameters.setFilmType(EffectParameters.FilmType.KODAK_500T);
+        for (int channels : new int[]{3, 4}) {
+            Mat expected = TestImages.testImage(600, 500);
+            if (channels == 3) {
+                Imgproc.cvtColor(expected, expected, Imgproc.COLOR_RGBA2BGR);
+            }
+            Mat actual = expected.clone();
+
+            FilmPipeline.applyFilmColorBalance(expected, parameters);
+            Mat expectedLuminance = new DerivedPlanes(expected, new MatPool()).luminance();
+            Mat luminance = new Mat(actual.size(), CvType.CV_8UC1);
+            FilmKernels.colorBalance(actual, DerivedPlanes.blueIndex(actual),
+                    FilmPipeline.colorBalanceTables(actual, parameters), luminance);
+
+            assertIdentical(expected, actual);
+            assertIdentical(expectedLuminance, luminance);
+        }
+    }
+
+    @Test
+    public void halationCompositeMatchesJavaPass() {
+        Mat expected = TestImages.testImage(600, 500);
+        Mat actual = expected.clone();
+        Mat mask = randomPlane(expected, 1);
+        double[] range = {12, 231};
+        Scalar red = DerivedPlanes.inOrder(expected, 0, 0, 255, 0);
+        Scalar warm = DerivedPlanes.inOrder(expected, 0, 20, 50, 0);
+
+        FilmPipeline.compositeHalation(expected, mask, range, red, warm, 0.37);
+        FilmKernels.compositeHalation(actual, mask,
+                FilmPipeline.halationTintTable(FilmPipeline.halationTints(range, red, warm, 4)), (float) 0.37);
+
+        assertIdentical(expected, actual);
+    }
+
+    @Test
+    public void toneCurveMatchesJavaPass() {
+        EffectParameters parameters = new EffectParameters();
+        parameters.setFilmType(EffectParameters.FilmType.KODAK_250D);
+        ToneCurveLut lut = ToneCurveLut.get(0.7, parameters, 8, 247);
+        Mat expected = TestImages.testImage(600, 500);
+        Mat actual = expected.clone();
+        Mat expectedLightness = new Mat(expected.size(), CvType.CV_8UC1);
+        Mat lightness = new Mat(expected.size(), CvType.CV_8UC1);
+
+        lut.apply(expected, expectedLightness);
+        lut.applyNative(actual, lightness);
+
+        assertIdentical(expected, actual);
+        assertIdentical(expectedLightness, lightness);
+    }
+
+    @Test
+    public void grainMatchesJavaPass() {
+        Mat expected = TestImages.testImage(600, 500);
+        Mat actual = expected.clone();
+        Mat noise = randomPlane(expected, 2);
+
+        FilmPipeline.blendGrain(expected, noise, 0.06);
+        FilmKernels.blendGrain(actual, DerivedPlanes.blueIndex(actual), noise, FilmPipeline.grainGains(0.06));
+
+        assertIdentical(expected, actual);
+    }
+
+    // OpenCV may fuse the float multiply-add of the mask normalisation, so the bloom is only
+    // required to stay within a level
+    @Test
+    public void bloomWithinOneLevelOfOpenCv() {
+        EffectParameters parameters = new EffectParameters();
+        parameters.setBloomIntensity(0.8f);
+        Mat expected = TestImages.testImage(600, 500);
+        Mat actual = expected.clone();
+
+        FilmPipeline.addSoftBloom(expected, 0.9, parameters, new DerivedPlanes(expected, new MatPool()),
+                new RenderContext());
+        FilmPipeline.addSoftBloom(actual, 0.9, parameters, new DerivedPlanes(actual, new MatPool()),
+                nativeContext());
+
+        assertTrue(TestImages.maxDifference(expected, actual) <= 1);
+    }
+
+    @Test
+    public void renderMatchesOpenCvPipeline() {
+        for (EffectParameters.FilmType filmType : EffectParameters.FilmType.values()) {
+            EffectParameters parameters = new EffectParameters();
+            parameters.setFilmType(filmType);
+            for (int channels : new int[]{3, 4}) {
+                Mat expected = TestImages.testImage(800, 600);
+                if (channels == 3) {
+                    Imgproc.cvtColor(expected, expected, Imgproc.COLOR_RGBA2BGR);
+                }
+                Mat actual = expected.clone();
+
+                FilmPipeline.applyStages(expected, parameters, new RenderContext());
+                FilmPipeline.applyStages(actual, parameters, nativeContext());
+
+                String label = filmType + " " + channels + " channels";
+                assertTrue(label, TestImages.maxDifference(expected, actual) <= 2);
+                assertTrue(label, TestImages.changedShare(expected, actual) < 0.001);
+            }
+        }
+    }
+
+    private static RenderContext nativeContext() {
+        RenderContext context = new RenderContext();
+        context.setNativeKernels(true);
+        return context;
+    }
+
+    private static Mat randomPlane(Mat img, int seed) {
+        Mat plane = new Mat(img.size(), CvType.CV_8UC1);
+        Core.setRNGSeed(seed);
+        Core.randu(plane, 0, 256);
+        return plane;
+    }
+
+    private static void assertIdentical(Mat expected, Mat actual) {
+        assertEquals(0, TestImages.maxDifference(expected, actual));
+    }
+}
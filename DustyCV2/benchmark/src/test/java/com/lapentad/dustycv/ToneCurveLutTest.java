@@ -0,0 +1,116 @@
+package com.lapentad.dustycv;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pins how far the tone curve LUT is from the per-pixel Lab maths it replaced. The interpolation
+ * is within a level almost everywhere. The far outliers sit at the knees of the film curve, which
+ * jumps there for contrasts other than 1, and at colours the Lab adjustment pushes out of gamut.
+ */
+public class ToneCurveLutTest {
+    private static final double STRENGTH = 0.7;
+    // Bounds over both test images, the worst film stock measured 34, 0.66 and 1.5 %
+    private static final int MAX_DIFFERENCE = 36;
+    private static final double MEAN_DIFFERENCE = 0.75;
+    private static final double SHARE_BEYOND_4 = 0.02;
+
+    @BeforeClass
+    public static void loadLibraries() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Test
+    public void lutStaysCloseToPerPixelCurve() {
+        Mat testImage = TestImages.testImage();
+        Imgproc.cvtColor(testImage, testImage, Imgproc.COLOR_RGBA2BGR);
+        // Every corner of the colour cube, not just the colours of a photo
+        Mat randomColours = new Mat(512, 512, CvType.CV_8UC3);
+        Core.setRNGSeed(5);
+        Core.randu(randomColours, 0, 256);
+
+        for (Mat img : new Mat[]{testImage, randomColours}) {
+            for (EffectParameters.FilmType filmType : EffectParameters.FilmType.values()) {
+                EffectParameters parameters = new EffectParameters();
+                parameters.setFilmType(filmType);
+
+                Mat expected = img.clone();
+                referenceToneCurve(expected, parameters);
+                Mat actual = img.clone();
+                double[] range = lightnessRange(img);
+                ToneCurveLut.get(STRENGTH, parameters, range[0], range[1]).apply(actual, null);
+
+                String label = filmType + " " + img.size();
+                assertTrue(label, TestImages.maxDifference(expected, actual) <= MAX_DIFFERENCE);
+                assertTrue(label, TestImages.meanDifference(expected, actual) < MEAN_DIFFERENCE);
+                assertTrue(label, TestImages.countDifferent(expected, actual, 4)
+                        < SHARE_BEYOND_4 * expected.total() * expected.channels());
+                expected.release();
+                actual.release();
+            }
+        }
+    }
+
+    private static double[] lightnessRange(Mat img) {
+        Mat lab = new Mat();
+        Imgproc.cvtColor(img, lab, Imgproc.COLOR_BGR2Lab);
+        Mat lightness = new Mat();
+        Core.extractChannel(lab, lightness, 0);
+        Core.MinMaxLocResult range = Core.minMaxLoc(lightness);
+        lab.release();
+        lightness.release();
+        return new double[]{range.minVal, range.maxVal};
+    }
+
+    // The tone curve stage before ToneCurveLut: to Lab, shift a and b by the normalised L, apply
+    // the film curve to L and back to BGR
+    private static void referenceToneCurve(Mat img, EffectParameters parameters) {
+        Imgproc.cvtColor(img, img, Imgproc.COLOR_BGR2Lab);
+        Mat lut = new Mat(1, 256, CvType.CV_8UC1);
+        lut.put(0, 0, FilmPipeline.getLut(STRENGTH, parameters.getFilmContrast()));
+
+        List<Mat> channels = new ArrayList<>();
+        Core.split(img, channels);
+        Mat aFloat = new Mat();
+        Mat bFloat = new Mat();
+        Mat lFloat = new Mat();
+        channels.get(1).convertTo(aFloat, CvType.CV_32F);
+        channels.get(2).convertTo(bFloat, CvType.CV_32F);
+        channels.get(0).convertTo(lFloat, CvType.CV_32F);
+        Core.normalize(lFloat, lFloat, 0, 1, Core.NORM_MINMAX);
+
+        Mat warmA = new Mat();
+        Mat warmB = new Mat();
+        Core.multiply(lFloat, new Scalar((parameters.getRedTint() - 1.0f) * 10.0f), warmA);
+        Core.multiply(lFloat, new Scalar((1.0f - parameters.getBlueTint()) * 10.0f), warmB);
+        Core.add(aFloat, warmA, aFloat);
+        Core.add(bFloat, warmB, bFloat);
+        Core.min(aFloat, new Scalar(255), aFloat);
+        Core.max(aFloat, new Scalar(0), aFloat);
+        Core.min(bFloat, new Scalar(255), bFloat);
+        Core.max(bFloat, new Scalar(0), bFloat);
+        aFloat.convertTo(channels.get(1), CvType.CV_8U);
+        bFloat.convertTo(channels.get(2), CvType.CV_8U);
+
+        Core.LUT(channels.get(0), lut, channels.get(0));
+        Core.merge(channels, img);
+        Imgproc.cvtColor(img, img, Imgproc.COLOR_Lab2BGR);
+
+        for (Mat mat : new Mat[]{lut, aFloat, bFloat, lFloat, warmA, warmB}) {
+            mat.release();
+        }
+        for (Mat channel : channels) {
+            channel.release();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+// Fused per-pixel passes of FilmPipeline, see FilmKernels.java. Each pass walks the image once in
+// bands of rows spread over the cores. Within a row, the table lookups are gathered into a
+// float row first, so the blend itself is a straight loop the compiler vectorises: NEON on ARM,
+// SSE on x86 with an AVX2 clone picked at load time.
+//
+// The passes round like the Java and OpenCV code they replace, so this file must be built
+// without fused multiply-adds (-ffp-contract=off) and without -ffast-math.
+
+#include <jni.h>
+
+#include <algorithm>
+#include <cstddef>
+#include <cstdint>
+#include <vector>
+
+#if defined(__x86_64__) || defined(__i386__)
+#define ROW_KERNEL __attribute__((target_clones("avx2", "default")))
+#else
+#define ROW_KERNEL
+#endif
+
+namespace {
+
+// Rows per band, enough to amortise the scheduling and small enough to stay in cache
+constexpr int BAND_ROWS = 16;
+
+struct Image {
+    uint8_t *data;
+    int rows;
+    int cols;
+    ptrdiff_t step;
+    int channels;
+
+    uint8_t *row(int y) const {
+        return data + y * step;
+    }
+};
+
+Image image(jlong address, jint rows, jint cols, jlong step, jint channels) {
+    return Image{reinterpret_cast<uint8_t *>(address), rows, cols, static_cast<ptrdiff_t>(step), channels};
+}
+
+// Saturates to 0-255 and rounds half to even like Math.rint and cvRound. Adding and subtracting
+// 1.5 * 2^23 leaves the nearest integer, in any SIMD unit.
+inline uint8_t roundToByte(float v) {
+    v = std::min(std::max(v, 0.0f), 255.0f);
+    return static_cast<uint8_t>(static_cast<int>((v + 12582912.0f) - 12582912.0f));
+}
+
+// Luminance with the fixed point weights of OpenCV's BGR2GRAY
+inline int gray(int b, int g, int r) {
+    return (b * 3735 + g * 19235 + r * 9798 + (1 << 14)) >> 15;
+}
+
+// Runs body(y) for every row, in bands of rows on the OpenMP threads
+template<typename Body>
+void forEachRow(int rows, Body body) {
+    int bands = (rows + BAND_ROWS - 1) / BAND_ROWS;
+#pragma omp parallel for schedule(dynamic)
+    for (int band = 0; band < bands; band++) {
+        int end = std::min(rows, (band + 1) * BAND_ROWS);
+        for (int y = band * BAND_ROWS; y < end; y++) {
+            body(y);
+        }
+    }
+}
+
+// Copies a Java array before a pass, rather than pinning it and holding off the GC for the whole
+// pass. The tables are a few KB, the tone curve grid a few MB.
+std::vector<uint8_t> copyOf(JNIEnv *env, jbyteArray array) {
+    std::vector<uint8_t> values;
+    if (array != nullptr) {
+        values.resize(static_cast<size_t>(env->GetArrayLength(array)));
+        env->GetByteArrayRegion(array, 0, static_cast<jsize>(values.size()), reinterpret_cast<jbyte *>(values.data()));
+    }
+    return values;
+}
+
+std::vector<float> copyOf(JNIEnv *env, jfloatArray array) {
+    std::vector<float> values;
+    if (array != nullptr) {
+        values.resize(static_cast<size_t>(env->GetArrayLength(array)));
+        env->GetFloatArrayRegion(array, 0, static_cast<jsize>(values.size()), values.data());
+    }
+    return values;
+}
+
+ROW_KERNEL
+void colorBalanceRow(uint8_t *pixels, int cols, int channels, int blue, const uint8_t *tables, uint8_t *luminance) {
+    int red = 2 - blue;
+    for (int x = 0; x < cols; x++) {
+        uint8_t *pixel = pixels + x * channels;
+        for (int c = 0; c < channels; c++) {
+            pixel[c] = tables[(c << 8) | pixel[c]];
+        }
+        luminance[x] = static_cast<uint8_t>(gray(pixel[blue], pixel[1], pixel[red]));
+    }
+}
+
+// Adds tint * amount, tint looked up per channel and mask value, with float maths
+ROW_KERNEL
+void halationRow(uint8_t *pixels, const uint8_t *mask, int cols, int channels, const uint8_t *tints, float amount,
+                 float *tint) {
+    int length = cols * channels;
+    for (int x = 0, i = 0; x < cols; x++) {
+        for (int c = 0; c < channels; c++, i++) {
+            tint[i] = tints[(c << 8) | mask[x]];
+        }
+    }
+    for (int i = 0; i < length; i++) {
+        pixels[i] = roundToByte(pixels[i] + tint[i] * amount);
+    }
+}
+
+// Tetrahedral interpolation in the grid of ToneCurveLut, writing the L of the result too
+ROW_KERNEL
+void toneCurveRow(uint8_t *pixels, uint8_t *lightness, int cols, int channels, int blue, const uint8_t *table,
+                  const int *nodeIndex, const int *nodeFraction, int nodes, int step) {
+    int red = 2 - blue;
+    int db = nodes * nodes * 4;
+    int dg = nodes * 4;
+    int dr = 4;
+    int far = db + dg + dr;
+    for (int x = 0; x < cols; x++) {
+        uint8_t *pixel = pixels + x * channels;
+        int b = pixel[blue];
+        int g = pixel[1];
+        int r = pixel[red];
+        int fb = nodeFraction[b];
+        int fg = nodeFraction[g];
+        int fr = nodeFraction[r];
+        const uint8_t *base = table + ((nodeIndex[b] * nodes + nodeIndex[g]) * nodes + nodeIndex[r]) * 4;
+
+        // Walk from the base node to the opposite corner along the axes in order of decreasing fraction
+        int d1, d2, w0, w1, w2, w3;
+        if (fb >= fg) {
+            if (fg >= fr) {
+                d1 = db; d2 = db + dg; w0 = step - fb; w1 = fb - fg; w2 = fg - fr; w3 = fr;
+            } else if (fb >= fr) {
+                d1 = db; d2 = db + dr; w0 = step - fb; w1 = fb - fr; w2 = fr - fg; w3 = fg;
+            } else {
+                d1 = dr; d2 = dr + db; w0 = step - fr; w1 = fr - fb; w2 = fb - fg; w3 = fg;
+            }
+        } else {
+            if (fb >= fr) {
+                d1 = dg; d2 = dg + db; w0 = step - fg; w1 = fg - fb; w2 = fb - fr; w3 = fr;
+            } else if (fg >= fr) {
+                d1 = dg; d2 = dg + dr; w0 = step - fg; w1 = fg - fr; w2 = fr - fb; w3 = fb;
+            } else {
+                d1 = dr; d2 = dr + dg; w0 = step - fr; w1 = fr - fg; w2 = fg - fb; w3 = fb;
+            }
+        }
+        int out[4];
+        for (int c = 0; c < 4; c++) {
+            int v = w0 * base[c] + w1 * base[d1 + c] + w2 * base[d2 + c] + w3 * base[far + c];
+            out[c] = (v + step / 2) / step;
+        }
+        pixel[blue] = static_cast<uint8_t>(out[0]);
+        pixel[1] = static_cast<uint8_t>(out[1]);
+        pixel[red] = static_cast<uint8_t>(out[2]);
+        if (lightness != nullptr) {
+            lightness[x] = static_cast<uint8_t>(out[3]);
+        }
+    }
+}
+
+// Adds pixel * tint * amount, tint looked up per channel and mask value. The product is in float
+// and the sum in double, like Core.multiply and Core.addWeighted on float Mats.
+ROW_KERNEL
+void bloomRow(uint8_t *pixels, const uint8_t *mask, int cols, int channels, const float *tints, double amount,
+              float *tint) {
+    int length = cols * channels;
+    for (int x = 0, i = 0; x < cols; x++) {
+        for (int c = 0; c < channels; c++, i++) {
+            tint[i] = tints[(c << 8) | mask[x]];
+        }
+    }
+    for (int i = 0; i < length; i++) {
+        float p = pixels[i];
+        float effect = p * tint[i];
+        pixels[i] = roundToByte(static_cast<float>(p + effect * amount));
+    }
+}
+
+// Multiplies each colour channel by 1 + gain, the gain looked up per luminance band and noise
+// value. Alpha keeps its value.
+ROW_KERNEL
+void grainRow(uint8_t *pixels, const uint8_t *noise, int cols, int channels, int blue, const float *gains,
+              float *gain) {
+    int red = 2 - blue;
+    int length = cols * channels;
+    for (int x = 0, i = 0; x < cols; x++, i += channels) {
+        const uint8_t *pixel = pixels + i;
+        int luminance = gray(pixel[blue], pixel[1], pixel[red]);
+        int band = luminance <= 60 ? 0 : luminance > 200 ? 2 : 1;
+        float g = gains[(band << 8) | noise[x]];
+        gain[i] = g;
+        gain[i + 1] = g;
+        gain[i + 2] = g;
+        if (channels == 4) {
+            gain[i + 3] = 0.0f;
+        }
+    }
+    for (int i = 0; i < length; i++) {
+        float v = pixels[i];
+        pixels[i] = roundToByte(v + v * gain[i]);
+    }
+}
+
+}  // namespace
+
+extern "C" {
+
+JNIEXPORT void JNICALL
+Java_com_lapentad_dustycv_FilmKernels_colorBalance(JNIEnv *env, jclass, jlong img, jint rows, jint cols, jlong step,
+                                                   jint channels, jint blue, jbyteArray tables, jlong luminance,
+                                                   jlong luminanceStep) {
+    Image image = ::image(img, rows, cols, step, channels);
+    Image luma = ::image(luminance, rows, cols, luminanceStep, 1);
+    std::vector<uint8_t> table = copyOf(env, tables);
+    forEachRow(rows, [&](int y) {
+        colorBalanceRow(image.row(y), cols, channels, blue, table.data(), luma.row(y));
+    });
+}
+
+JNIEXPORT void JNICALL
+Java_com_lapentad_dustycv_FilmKernels_compositeHalation(JNIEnv *env, jclass, jlong img, jint rows, jint cols,
+                                                        jlong step, jint channels, jlong mask, jlong maskStep,
+                                                        jbyteArray tints, jfloat amount) {
+    Image image = ::image(img, rows, cols, step, channels);
+    Image glow = ::image(mask, rows, cols, maskStep, 1);
+    std::vector<uint8_t> tint = copyOf(env, tints);
+    forEachRow(rows, [&](int y) {
+        thread_local std::vector<float> scratch;
+        scratch.resize(static_cast<size_t>(cols) * channels);
+        halationRow(image.row(y), glow.row(y), cols, channels, tint.data(), amount, scratch.data());
+    });
+}
+
+JNIEXPORT void JNICALL
+Java_com_lapentad_dustycv_FilmKernels_applyToneCurve(JNIEnv *env, jclass, jlong img, jint rows, jint cols, jlong step,
+                                                     jint channels, jint blue, jbyteArray table, jint nodes,
+                                                     jint gridStep, jlong lightness, jlong lightnessStep) {
+    Image image = ::image(img, rows, cols, step, channels);
+    Image light = ::image(lightness, rows, cols, lightnessStep, 1);
+    int nodeIndex[256];
+    int nodeFraction[256];
+    for (int v = 0; v < 256; v++) {
+        int node = std::min(v / gridStep, nodes - 2);
+        nodeIndex[v] = node;
+        nodeFraction[v] = v - node * gridStep;
+    }
+    std::vector<uint8_t> grid = copyOf(env, table);
+    forEachRow(rows, [&](int y) {
+        toneCurveRow(image.row(y), lightness != 0 ? light.row(y) : nullptr, cols, channels, blue, grid.data(),
+                     nodeIndex, nodeFraction, nodes, gridStep);
+    });
+}
+
+JNIEXPORT void JNICALL
+Java_com_lapentad_dustycv_FilmKernels_compositeBloom(JNIEnv *env, jclass, jlong img, jint rows, jint cols, jlong step,
+                                                     jint channels, jint blue, jlong mask, jlong maskStep,
+                                                     jfloatArray tints, jdouble amount, jlong noise, jlong noiseStep,
+                                                     jfloatArray grainGains) {
+    Image image = ::image(img, rows, cols, step, channels);
+    Image glow = ::image(mask, rows, cols, maskStep, 1);
+    Image grain = ::image(noise, rows, cols, noiseStep, 1);
+    std::vector<float> tint = copyOf(env, tints);
+    std::vector<float> gains = copyOf(env, grainGains);
+    forEachRow(rows, [&](int y) {
+        thread_local std::vector<float> scratch;
+        scratch.resize(static_cast<size_t>(cols) * channels);
+        uint8_t *pixels = image.row(y);
+        bloomRow(pixels, glow.row(y), cols, channels, tint.data(), amount, scratch.data());
+        // The grain reads the bloomed row while it is still in cache
+        if (noise != 0) {
+            grainRow(pixels, grain.row(y), cols, channels, blue, gains.data(), scratch.data());
+        }
+    });
+}
+
+JNIEXPORT void JNICALL
+Java_com_lapentad_dustycv_FilmKernels_blendGrain(JNIEnv *env, jclass, jlong img, jint rows, jint cols, jlong step,
+                                                 jint channels, jint blue, jlong noise, jlong noiseStep,
+                                                 jfloatArray grainGains) {
+    Image image = ::image(img, rows, cols, step, channels);
+    Image grain = ::image(noise, rows, cols, noiseStep, 1);
+    std::vector<float> gains = copyOf(env, grainGains);
+    forEachRow(rows, [&](int y) {
+        thread_local std::vector<float> scratch;
+        scratch.resize(static_cast<size_t>(cols) * channels);
+        grainRow(image.row(y), grain.row(y), cols, channels, blue, gains.data(), scratch.data());
+    });
+}
+
+}  // extern "C"
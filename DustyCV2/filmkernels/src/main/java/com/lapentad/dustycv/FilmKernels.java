@@ -0,0 +1,133 @@
+package com.lapentad.dustycv;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Native versions of the per-pixel passes of the film pipeline, each one pass over the image in
+ * bands of rows on all cores with SIMD blends. The tables come from the Java side, so the passes
+ * give the same pixels as the Java and OpenCV code they stand in for, see film_kernels.cpp.
+ * Images are CV_8UC3 BGR or CV_8UC4 RGBA Mats, blueIndex tells which, planes are CV_8UC1 Mats of
+ * the same size.
+ */
+public final class FilmKernels {
+    private static final boolean AVAILABLE = load();
+
+    private FilmKernels() {
+    }
+
+    private static boolean load() {
+        try {
+            System.loadLibrary("filmkernels");
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            // Not built for this ABI or platform, the pipeline keeps to its Java and OpenCV passes
+            return false;
+        }
+    }
+
+    // Whether the native library loaded, none of the passes may be called otherwise
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    // Maps each channel value through tables[(channel << 8) | value] and writes the luminance of the
+    // result to luminance
+    public static void colorBalance(Mat img, int blueIndex, byte[] tables, Mat luminance) {
+        checkImage(img, tables.length);
+        checkPlane(img, luminance);
+        colorBalance(img.dataAddr(), img.rows(), img.cols(), img.step1(0), img.channels(), blueIndex, tables,
+                luminance.dataAddr(), luminance.step1(0));
+    }
+
+    // Adds tints[(channel << 8) | mask value] * amount to each channel, with float maths
+    public static void compositeHalation(Mat img, Mat mask, byte[] tints, float amount) {
+        checkImage(img, tints.length);
+        checkPlane(img, mask);
+        compositeHalation(img.dataAddr(), img.rows(), img.cols(), img.step1(0), img.channels(), mask.dataAddr(),
+                mask.step1(0), tints, amount);
+    }
+
+    // Looks up each colour in a ToneCurveLut grid of nodes^3 B, G, R, L entries, step apart, and
+    // writes the L of the result to lightness unless it is null
+    public static void applyToneCurve(Mat img, int blueIndex, byte[] table, int nodes, int step, Mat lightness) {
+        checkImage(img, 0);
+        if (table.length != nodes * nodes * nodes * 4) {
+            throw new IllegalArgumentException("Tone curve grid of " + table.length + " bytes for " + nodes + " nodes");
+        }
+        long lightnessAddress = 0;
+        long lightnessStep = 0;
+        if (lightness != null) {
+            checkPlane(img, lightness);
+            lightnessAddress = lightness.dataAddr();
+            lightnessStep = lightness.step1(0);
+        }
+        applyToneCurve(img.dataAddr(), img.rows(), img.cols(), img.step1(0), img.channels(), blueIndex, table, nodes,
+                step, lightnessAddress, lightnessStep);
+    }
+
+    // Adds pixel * tints[(channel << 8) | mask value] * amount to each channel, then blends the
+    // grain in the same pass unless noise is null, see blendGrain
+    public static void compositeBloom(Mat img, int blueIndex, Mat mask, float[] tints, double amount, Mat noise,
+                                      float[] grainGains) {
+        checkImage(img, tints.length);
+        checkPlane(img, mask);
+        long noiseAddress = 0;
+        long noiseStep = 0;
+        if (noise != null) {
+            checkPlane(img, noise);
+            checkGains(grainGains);
+            noiseAddress = noise.dataAddr();
+            noiseStep = noise.step1(0);
+        }
+        compositeBloom(img.dataAddr(), img.rows(), img.cols(), img.step1(0), img.channels(), blueIndex,
+                mask.dataAddr(), mask.step1(0), tints, amount, noiseAddress, noiseStep, grainGains);
+    }
+
+    // Scales each colour channel by 1 + grainGains[(band << 8) | noise value], the band being 0, 1
+    // or 2 for a luminance up to 60, up to 200 and above
+    public static void blendGrain(Mat img, int blueIndex, Mat noise, float[] grainGains) {
+        checkImage(img, 0);
+        checkPlane(img, noise);
+        checkGains(grainGains);
+        blendGrain(img.dataAddr(), img.rows(), img.cols(), img.step1(0), img.channels(), blueIndex, noise.dataAddr(),
+                noise.step1(0), grainGains);
+    }
+
+    private static void checkImage(Mat img, int tableLength) {
+        if (img.depth() != CvType.CV_8U || (img.channels() != 3 && img.channels() != 4)) {
+            throw new IllegalArgumentException("Expected an 8-bit BGR or RGBA image, got " + img);
+        }
+        if (tableLength != 0 && tableLength != img.channels() << 8) {
+            throw new IllegalArgumentException("Expected 256 table entries per channel, got " + tableLength);
+        }
+    }
+
+    private static void checkPlane(Mat img, Mat plane) {
+        if (plane.type() != CvType.CV_8UC1 || plane.rows() != img.rows() || plane.cols() != img.cols()) {
+            throw new IllegalArgumentException("Expected a CV_8UC1 plane the size of " + img + ", got " + plane);
+        }
+    }
+
+    private static void checkGains(float[] grainGains) {
+        if (grainGains == null || grainGains.length != 3 << 8) {
+            throw new IllegalArgumentException("Expected 256 grain gains per luminance band");
+        }
+    }
+
+    private static native void colorBalance(long img, int rows, int cols, long step, int channels, int blueIndex,
+                                            byte[] tables, long luminance, long luminanceStep);
+
+    private static native void compositeHalation(long img, int rows, int cols, long step, int channels, long mask,
+                                                 long maskStep, byte[] tints, float amount);
+
+    private static native void applyToneCurve(long img, int rows, int cols, long step, int channels, int blueIndex,
+                                              byte[] table, int nodes, int gridStep, long lightness, long lightnessStep);
+
+    private static native void compositeBloom(long img, int rows, int cols, long step, int channels, int blueIndex,
+                                              long mask, long maskStep, float[] tints, double amount, long noise,
+                                              long noiseStep, float[] grainGains);
+
+    private static native void blendGrain(long img, int rows, int cols, long step, int channels, int blueIndex,
+                                          long noise, long noiseStep, float[] grainGains);
+}
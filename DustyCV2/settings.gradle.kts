@@ -23,3 +23,5 @@ dependencyResolutionManagement {
 rootProject.name = "DustyCV"
 include(":app")
 include(":opencv")
+include(":filmkernels")
+include(":benchmark")